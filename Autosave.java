@@ -0,0 +1,394 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/* Saves the game on a background thread, so that the user interface never waits for the disk.
+ *
+ * A saved game consists of a snapshot (see Savegame) and a journal of the actions taken since.
+ * While an engine is being recorded, each of its actions is appended to the journal; every
+ * kCompactInterval turns, and whenever save() is called, a new snapshot replaces the old one
+ * and the journal starts over. Loading reads the snapshot and replays the journal on top of it.
+ *
+ * Snapshots and journal entries are encoded on the calling thread, which is cheap, and written
+ * on a single writer thread in the order they were made. If the writer is still busy when a
+ * new snapshot arrives, only the newest waiting snapshot is written.
+ *
+ * The journal starts with the magic bytes "RCjn", a version byte and the id of the game. Each
+ * entry holds the engine's action count after the action (see Engine.actionCount()), the type of
+ * the action, its arguments and a CRC32 of the entry; entries that are already part of the
+ * snapshot are skipped when replaying. */
+public class Autosave implements Engine.Listener {
+
+	/* After this many turns, the journal is folded into a new snapshot. */
+	public static final int kCompactInterval = 10;
+
+	private static final int kMagic = 0x52436a6e;
+	/* Version 2 stores swap positions as Bag.put() takes them; older journals are ignored. */
+	private static final int kVersion = 2;
+	private static final int kHeaderSize = 13;
+	private static final byte kPlace = 1;
+	private static final byte kUnplace = 2;
+	private static final byte kUndo = 3;
+	private static final byte kBeginSwap = 4;
+	private static final byte kSwap = 5;
+	private static final byte kCancelSwap = 6;
+	private static final byte kEndTurn = 7;
+
+	private static class Snapshot {
+		final ByteBuffer data;
+		final long game;
+		final long actions;
+		Snapshot(ByteBuffer d, long g, long a) {
+			data = d;
+			game = g;
+			actions = a;
+		}
+	}
+
+	private final Path file;
+	private final Path journalFile;
+	private final ExecutorService writer;
+	/* The newest snapshot that has not been written yet, or null. Replaced by delete(), so that
+	 * write tasks queued before then no longer see the snapshots saved after. */
+	private AtomicReference<Snapshot> pending;
+	/* Whether there will be a saved game once the writer is done. */
+	private volatile boolean exists;
+
+	/* The engine whose actions are recorded, and the number of turns since its last snapshot. */
+	private Engine engine;
+	private int turns;
+
+	/* Used by the writer thread only: the open journal, and the game and action count of the snapshot it belongs to. */
+	private FileChannel journal;
+	private long journalGame;
+	private long journalBase;
+
+	public Autosave(Path f) {
+		file = f;
+		journalFile = f.resolveSibling(f.getFileName() + ".journal");
+		pending = new AtomicReference<>();
+		exists = Files.isRegularFile(f);
+		writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Autosave");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public boolean exists() {
+		return exists;
+	}
+
+	/* Writes a snapshot of the game and the brick the current player is holding, if any. */
+	public void save(Engine e, Brick held) {
+		exists = true;
+		turns = 0;
+		final AtomicReference<Snapshot> slot = pending;
+		if (slot.getAndSet(new Snapshot(Savegame.encode(e, held), e.gameId(), e.actionCount())) == null) {
+			writer.execute(new Runnable() {
+				public void run() {
+					final Snapshot s = slot.getAndSet(null);
+					if (s == null) {
+						return;
+					}
+					try {
+						final Telemetry.Save event = new Telemetry.Save();
+						final long size = s.data.remaining();
+						Savegame.write(s.data, file);
+						event.finish(size);
+						startJournal(s.game, s.actions);
+					} catch (IOException x) {
+						System.out.println("ERROR: Could not save game: " + x);
+					}
+				}
+			});
+		}
+	}
+
+	/* Appends all further actions of the engine to the journal, until stop() is called.
+	 * A snapshot of the engine's game must have been saved first. */
+	public void record(Engine e) {
+		if (engine != e) {
+			stop();
+			engine = e;
+			e.setListener(this);
+		}
+	}
+	public boolean isRecording(Engine e) {
+		return engine == e;
+	}
+	public void stop() {
+		if (engine != null) {
+			engine.setListener(null);
+			engine = null;
+		}
+	}
+
+	/* Deletes the saved game once everything queued before has been written. */
+	public void delete() {
+		stop();
+		exists = false;
+		/* Drop the snapshot waiting to be written here rather than in the task, so that one saved
+		 * after this call is written by a task of its own after the file was deleted. */
+		pending.set(null);
+		pending = new AtomicReference<>();
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					closeJournal();
+					Files.deleteIfExists(file);
+					Files.deleteIfExists(journalFile);
+				} catch (IOException x) {
+					System.out.println("ERROR: Could not delete saved game: " + x);
+				}
+			}
+		});
+	}
+
+	/* Waits until everything queued so far has been written. */
+	public void flush() {
+		try {
+			writer.submit(new Runnable() {
+				public void run() {
+				}
+			}).get();
+		} catch (InterruptedException | ExecutionException x) {
+			System.out.println("ERROR: Could not save game: " + x);
+		}
+	}
+
+	/* Restores the saved game including all journalled actions.
+	 * Returns the brick the current player was holding, if any. */
+	public Brick load(Engine e) throws IOException {
+		flush();
+		final Telemetry.Load event = new Telemetry.Load();
+		Brick held = Savegame.read(e, file);
+		final long base = e.actionCount();
+		long size = Files.size(file);
+		if (Files.isRegularFile(journalFile)) {
+			final ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(journalFile));
+			size += buf.remaining();
+			held = replayJournal(e, buf, held);
+		}
+		event.finish(size, e.actionCount() - base);
+		return held;
+	}
+	private static Brick replayJournal(Engine e, ByteBuffer buf, Brick held) {
+		if (buf.remaining() < kHeaderSize || buf.getInt() != kMagic || buf.get() != kVersion || buf.getLong() != e.gameId()) {
+			return held;
+		}
+		/* A crash may have cut off the last entry or left garbage behind it; replay everything up to
+		 * the first entry that is incomplete, fails its checksum or cannot be applied. */
+		try {
+			while (buf.hasRemaining()) {
+				final int start = buf.position();
+				final long seq = Savegame.getVarint(buf);
+				final byte type = buf.get();
+				final int args = buf.position();
+				skip(buf, type);
+				if (!checksum(buf, start)) {
+					break;
+				}
+				final int end = buf.position();
+				if (seq <= e.actionCount()) {
+					continue;
+				}
+				if (seq != e.actionCount() + 1) {
+					break;
+				}
+				if (held != null) {
+					/* The player was still holding a brick when the snapshot was taken. */
+					if (!putBack(e, held)) break;
+					held = null;
+				}
+				buf.position(args);
+				if (!replay(e, buf, type)) {
+					break;
+				}
+				buf.position(end);
+			}
+		} catch (RuntimeException x) {
+		}
+		return held;
+	}
+	/* Reads the checksum behind the entry starting at the given position and compares it. */
+	private static boolean checksum(ByteBuffer buf, int start) {
+		final CRC32 crc = new CRC32();
+		crc.update(buf.array(), buf.arrayOffset() + start, buf.position() - start);
+		return buf.getInt() == (int)crc.getValue();
+	}
+
+	private static boolean replay(Engine e, ByteBuffer buf, byte type) {
+		switch (type) {
+			case kPlace: {
+				final int x = Savegame.getSigned(buf);
+				final int y = Savegame.getSigned(buf);
+				final int index = rackIndex(e, Savegame.getBrick(buf));
+				if (index < 0 || !e.mayPlaceAt(e.getPlayers()[e.getCurrentPlayer()].getBricks()[index], x, y)) {
+					return false;
+				}
+				e.place(x, y, index);
+				return true;
+			}
+			case kUnplace:
+				if (e.placedCount() == 0) return false;
+				e.unplace();
+				return true;
+			case kUndo:
+				e.undo();
+				return true;
+			case kBeginSwap:
+				e.beginSwap();
+				return true;
+			case kSwap: {
+				final int index = rackIndex(e, Savegame.getBrick(buf));
+				return index >= 0 && e.swap(index);
+			}
+			case kCancelSwap:
+				e.cancelSwap();
+				return true;
+			case kEndTurn: {
+				if (Savegame.getVarint(buf) != e.swapCount()) return false;
+				/* The rack is refilled first, then each brick goes back into a bag that has grown by the ones before. */
+				int size = e.bagSize();
+				for (Brick b : e.getPlayers()[e.getCurrentPlayer()].getBricks()) {
+					if (b == null && size > 0) --size;
+				}
+				final int[] positions = new int[e.swapCount()];
+				for (int i = 0; i < positions.length; ++i) {
+					final long p = Savegame.getVarint(buf);
+					if (p < 0 || p > size + i) return false;
+					positions[i] = (int)p;
+				}
+				e.endTurn(positions);
+				return true;
+			}
+			default:
+				return false;
+		}
+	}
+	private static void skip(ByteBuffer buf, byte type) {
+		switch (type) {
+			case kPlace:
+				Savegame.getVarint(buf);
+				Savegame.getVarint(buf);
+				buf.get();
+				break;
+			case kSwap:
+				buf.get();
+				break;
+			case kEndTurn:
+				for (long n = Savegame.getVarint(buf); n > 0; --n) Savegame.getVarint(buf);
+				break;
+			default:
+				break;
+		}
+	}
+	private static int rackIndex(Engine e, Brick b) {
+		final Brick[] rack = e.getPlayers()[e.getCurrentPlayer()].getBricks();
+		for (int i = 0; i < rack.length; ++i) {
+			if (b != null && rack[i] == b) return i;
+		}
+		return -1;
+	}
+	private static boolean putBack(Engine e, Brick b) {
+		final Brick[] rack = e.getPlayers()[e.getCurrentPlayer()].getBricks();
+		for (int i = 0; i < rack.length; ++i) {
+			if (rack[i] == null) {
+				rack[i] = b;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void placed(int x, int y, Brick b) {
+		Savegame.Writer w = entry(kPlace);
+		w.putSigned(x);
+		w.putSigned(y);
+		w.putBrick(b);
+		append(w, false);
+	}
+	public void unplaced() {
+		append(entry(kUnplace), false);
+	}
+	public void undone() {
+		append(entry(kUndo), false);
+	}
+	public void swapBegun() {
+		append(entry(kBeginSwap), false);
+	}
+	public void swapped(Brick b) {
+		Savegame.Writer w = entry(kSwap);
+		w.putBrick(b);
+		append(w, false);
+	}
+	public void swapCancelled() {
+		append(entry(kCancelSwap), false);
+	}
+	public void turnEnded(int[] positions) {
+		Savegame.Writer w = entry(kEndTurn);
+		w.putVarint(positions.length);
+		for (int p : positions) w.putVarint(p);
+		append(w, true);
+		if (++turns >= kCompactInterval && !engine.isGameOver()) {
+			save(engine, null);
+		}
+	}
+
+	/* Starts an entry; append() adds its checksum. */
+	private Savegame.Writer entry(byte type) {
+		Savegame.Writer w = new Savegame.Writer();
+		w.putVarint(engine.actionCount());
+		w.buf.put(type);
+		return w;
+	}
+	/* Hands an entry to the writer. At the end of a turn, the journal is also synced to disk. */
+	private void append(Savegame.Writer w, final boolean sync) {
+		final CRC32 crc = new CRC32();
+		crc.update(w.buf.array(), 0, w.buf.position());
+		w.ensure(4);
+		w.buf.putInt((int)crc.getValue());
+		final ByteBuffer buf = w.buf;
+		buf.flip();
+		final long game = engine.gameId();
+		final long seq = engine.actionCount();
+		writer.execute(new Runnable() {
+			public void run() {
+				/* Entries without a snapshot to replay them on, or that a newer snapshot already contains, are not needed. */
+				if (journal == null || game != journalGame || seq <= journalBase) {
+					return;
+				}
+				try {
+					while (buf.hasRemaining()) journal.write(buf);
+					if (sync) journal.force(false);
+				} catch (IOException x) {
+					System.out.println("ERROR: Could not write journal: " + x);
+				}
+			}
+		});
+	}
+
+	private void startJournal(long game, long actions) throws IOException {
+		closeJournal();
+		journal = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		final ByteBuffer header = ByteBuffer.allocate(kHeaderSize);
+		header.putInt(kMagic).put((byte)kVersion).putLong(game).flip();
+		while (header.hasRemaining()) journal.write(header);
+		journalGame = game;
+		journalBase = actions;
+	}
+	private void closeJournal() throws IOException {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+	}
+}
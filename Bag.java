@@ -0,0 +1,76 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/* The bricks that have not been dealt yet, in the order they will be drawn.
+ *
+ * The bricks are stored with the next one to be drawn at the end of the array, so drawing
+ * takes constant time. A brick is put back at some position by moving the brick found there to
+ * the end, to be drawn next, and taking its place. If the position is chosen at random, a bag in
+ * random order stays in random order; filling the bag this way shuffles it. */
+public class Bag {
+
+	private Brick[] bricks;
+	private int size;
+
+	public Bag() {
+		bricks = new Brick[Brick.kTypes * 3];
+	}
+	public Bag(Bag b) {
+		bricks = b.bricks.clone();
+		size = b.size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+	public int size() {
+		return size;
+	}
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/* The brick that will be drawn after the given number of others. */
+	public Brick at(int index) {
+		return bricks[size - 1 - index];
+	}
+
+	public Brick draw() {
+		return bricks[--size];
+	}
+	/* Adds the brick so that it is drawn next. */
+	public void add(Brick b) {
+		if (size == bricks.length) bricks = Arrays.copyOf(bricks, size * 2);
+		bricks[size++] = b;
+	}
+	/* Adds the brick so that it is drawn after the given number of others, between 0 and size().
+	 * The brick that was drawn after as many others before is drawn next instead. */
+	public void put(Brick b, int position) {
+		if (position < 0 || position > size) {
+			throw new IndexOutOfBoundsException("Position " + position + " in a bag of " + size);
+		}
+		if (position == 0) {
+			add(b);
+			return;
+		}
+		final int i = size - position;
+		add(bricks[i]);
+		bricks[i] = b;
+	}
+	/* Adds the brick at a random position, which is returned. */
+	public int put(Brick b, SplittableRandom random) {
+		final int position = random.nextInt(size + 1);
+		put(b, position);
+		return position;
+	}
+
+	/* Puts the bricks into a random order. */
+	public void shuffle(SplittableRandom random) {
+		for (int i = size - 1; i > 0; --i) {
+			final int j = random.nextInt(i + 1);
+			final Brick b = bricks[i];
+			bricks[i] = bricks[j];
+			bricks[j] = b;
+		}
+	}
+}
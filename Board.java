@@ -0,0 +1,553 @@
+/* Stores the bricks on the board as one byte per cell in a grid that grows as needed.
+ * Cells are addressed either by (x, y) or by an int into which both coordinates are packed.
+ * Looking up a cell never allocates.
+ *
+ * The board also keeps an index of all maximal horizontal and vertical lines of bricks:
+ * every occupied cell knows the id of the line it belongs to in each direction, and every
+ * line knows its length and the bitmasks of the colours and shapes it contains. This index
+ * is updated with every put() and remove() and allows checking whether a brick fits into a
+ * cell with a few bitmask operations.
+ *
+ * Finally, the board keeps the frontier: the set of empty cells next to at least one brick,
+ * which are the only cells where bricks can be placed. For each frontier cell, the set of
+ * brick codes that fit there is computed when first asked for and cached until one of the
+ * lines next to the cell changes.
+ *
+ * The board's Zobrist hash is the XOR of one pseudo-random 64-bit key per brick and cell.
+ * It is updated with every put() and remove(), so equal boards have equal hashes no
+ * matter in which order the bricks were placed. */
+public class Board {
+	
+	private static final int kInitialSize = 32;
+	
+	public static final int kHorizontal = 0;
+	public static final int kVertical = 1;
+	private static final int[] kDX = new int[] { 1, 0 };
+	private static final int[] kDY = new int[] { 0, 1 };
+	
+	private byte[] grid;
+	private int originX, originY, width, height;
+	private int[] cells;
+	private int size;
+	private int minX, minY, maxX, maxY;
+	private int[] codeCount;
+	
+	/* Line id + 1 of each cell for both directions, or 0 if the cell is empty. */
+	private short[] lineOf;
+	private byte[] lineLength, lineColors, lineShapes;
+	private int[] freeLines;
+	private int nrFreeLines, nrLines;
+	
+	/* Position + 1 of each cell in the frontier array, or 0 if the cell is not in the frontier. */
+	private short[] frontierIndex;
+	private int[] frontier;
+	private int frontierSize;
+	/* Codes that fit into each cell as a bitmask, or kStale if this needs to be recomputed. */
+	private long[] legal;
+	private static final long kStale = -1;
+	
+	private long hash;
+	/* Changes whenever a brick is put or removed. */
+	private int version;
+	
+	public Board() {
+		cells = new int[Brick.kTypes * 3];
+		codeCount = new int[Brick.kTypes];
+		lineLength = new byte[cells.length * 2];
+		lineColors = new byte[lineLength.length];
+		lineShapes = new byte[lineLength.length];
+		freeLines = new int[lineLength.length];
+		frontier = new int[cells.length * 4];
+		clear();
+	}
+	
+	public Board(Board b) {
+		grid = b.grid.clone();
+		originX = b.originX;
+		originY = b.originY;
+		width = b.width;
+		height = b.height;
+		cells = b.cells.clone();
+		codeCount = b.codeCount.clone();
+		size = b.size;
+		minX = b.minX;
+		minY = b.minY;
+		maxX = b.maxX;
+		maxY = b.maxY;
+		lineOf = b.lineOf.clone();
+		lineLength = b.lineLength.clone();
+		lineColors = b.lineColors.clone();
+		lineShapes = b.lineShapes.clone();
+		freeLines = b.freeLines.clone();
+		nrFreeLines = b.nrFreeLines;
+		nrLines = b.nrLines;
+		frontierIndex = b.frontierIndex.clone();
+		frontier = b.frontier.clone();
+		frontierSize = b.frontierSize;
+		legal = b.legal.clone();
+		hash = b.hash;
+		version = b.version;
+	}
+	
+	public static int cell(int x, int y) {
+		return (x << 16) | (y & 0xffff);
+	}
+	public static int cellX(int cell) {
+		return cell >> 16;
+	}
+	public static int cellY(int cell) {
+		return (short)cell;
+	}
+	
+	public void clear() {
+		width = kInitialSize;
+		height = kInitialSize;
+		originX = -kInitialSize / 2;
+		originY = -kInitialSize / 2;
+		grid = new byte[width * height];
+		lineOf = new short[2 * width * height];
+		frontierIndex = new short[width * height];
+		legal = new long[width * height];
+		java.util.Arrays.fill(legal, kStale);
+		frontierSize = 0;
+		hash = 0;
+		++version;
+		nrLines = 0;
+		nrFreeLines = 0;
+		java.util.Arrays.fill(codeCount, 0);
+		size = 0;
+		minX = 0;
+		minY = 0;
+		maxX = 0;
+		maxY = 0;
+	}
+	
+	/* Returns the code (colour * 6 + shape) of the brick at the given position, or -1 if it is empty. */
+	public int codeAt(int x, int y) {
+		final int gx = x - originX;
+		final int gy = y - originY;
+		if (gx < 0 || gy < 0 || gx >= width || gy >= height) {
+			return -1;
+		}
+		return grid[gy * width + gx] - 1;
+	}
+	public Brick brickAt(int x, int y) {
+		final int code = codeAt(x, y);
+		return code < 0 ? null : Brick.of(code);
+	}
+	public boolean isEmpty(int x, int y) {
+		return codeAt(x, y) < 0;
+	}
+	
+	/* Returns the id of the line through the given cell in the given direction, or -1 if the cell is empty. */
+	public int lineAt(int x, int y, int axis) {
+		final int gx = x - originX;
+		final int gy = y - originY;
+		if (gx < 0 || gy < 0 || gx >= width || gy >= height) {
+			return -1;
+		}
+		return lineOf[2 * (gy * width + gx) + axis] - 1;
+	}
+	public int lineLength(int line) {
+		return lineLength[line];
+	}
+	public int lineColors(int line) {
+		return lineColors[line];
+	}
+	public int lineShapes(int line) {
+		return lineShapes[line];
+	}
+	/* A line of a single brick is both a colour line and a shape line. */
+	public boolean isColorLine(int line) {
+		return Integer.bitCount(lineColors[line]) == 1;
+	}
+	public boolean isShapeLine(int line) {
+		return Integer.bitCount(lineShapes[line]) == 1;
+	}
+	
+	public int frontierSize() {
+		return frontierSize;
+	}
+	/* The empty cells next to at least one brick, in no particular order. */
+	public int frontierAt(int index) {
+		return frontier[index];
+	}
+	public boolean isFrontier(int x, int y) {
+		final int gx = x - originX;
+		final int gy = y - originY;
+		return gx >= 0 && gy >= 0 && gx < width && gy < height && frontierIndex[gy * width + gx] > 0;
+	}
+	
+	/* Bitmask of codes of bricks that fit into the given frontier cell as far as the lines next to it are concerned. */
+	public long legalCodes(int x, int y) {
+		final int i = (y - originY) * width + x - originX;
+		if (legal[i] == kStale) {
+			long mask = kAllCodes;
+			for (int axis = 0; axis < 2; ++axis) {
+				final int before = lineAt(x - kDX[axis], y - kDY[axis], axis);
+				final int after = lineAt(x + kDX[axis], y + kDY[axis], axis);
+				int length = 0;
+				int colors = 0;
+				int shapes = 0;
+				if (before >= 0) {
+					length += lineLength[before];
+					colors |= lineColors[before];
+					shapes |= lineShapes[before];
+				}
+				if (after >= 0) {
+					length += lineLength[after];
+					colors |= lineColors[after];
+					shapes |= lineShapes[after];
+				}
+				if (length > 0) {
+					long m = 0;
+					if (Integer.bitCount(colors) == 1 && Integer.bitCount(shapes) == length) {
+						m |= kCodesWithColor[colors] & kCodesWithShape[~shapes & 63];
+					}
+					if (Integer.bitCount(shapes) == 1 && Integer.bitCount(colors) == length) {
+						m |= kCodesWithShape[shapes] & kCodesWithColor[~colors & 63];
+					}
+					mask &= m;
+				}
+			}
+			legal[i] = mask;
+		}
+		return legal[i];
+	}
+	
+	private static final long kAllCodes = (1L << Brick.kTypes) - 1;
+	/* For each bitmask of colours or shapes, the bitmask of codes with one of these colours or shapes. */
+	private static final long[] kCodesWithColor = new long[1 << Brick.kColors];
+	private static final long[] kCodesWithShape = new long[1 << Brick.kShapes];
+	static {
+		for (int code = 0; code < Brick.kTypes; ++code) {
+			for (int m = 0; m < kCodesWithColor.length; ++m) {
+				if ((m & (1 << (code / Brick.kShapes))) != 0) kCodesWithColor[m] |= 1L << code;
+			}
+			for (int m = 0; m < kCodesWithShape.length; ++m) {
+				if ((m & (1 << (code % Brick.kShapes))) != 0) kCodesWithShape[m] |= 1L << code;
+			}
+		}
+	}
+	
+	private static boolean isValidLine(int length, int colors, int shapes) {
+		return (Integer.bitCount(colors) == 1 && Integer.bitCount(shapes) == length) ||
+				(Integer.bitCount(shapes) == 1 && Integer.bitCount(colors) == length);
+	}
+	
+	/* Whether a brick with the given code may be put into the given empty cell
+	 * without breaking any line. The cell must have at least one neighbour. */
+	public boolean fits(int x, int y, int code) {
+		if (!isEmpty(x, y)) {
+			return false;
+		}
+		final int color = 1 << (code / Brick.kShapes);
+		final int shape = 1 << (code % Brick.kShapes);
+		boolean neighbour = false;
+		for (int axis = 0; axis < 2; ++axis) {
+			final int before = lineAt(x - kDX[axis], y - kDY[axis], axis);
+			final int after = lineAt(x + kDX[axis], y + kDY[axis], axis);
+			int length = 1;
+			int colors = color;
+			int shapes = shape;
+			if (before >= 0) {
+				length += lineLength[before];
+				colors |= lineColors[before];
+				shapes |= lineShapes[before];
+			}
+			if (after >= 0) {
+				length += lineLength[after];
+				colors |= lineColors[after];
+				shapes |= lineShapes[after];
+			}
+			if (length > 1) {
+				if (!isValidLine(length, colors, shapes)) {
+					return false;
+				}
+				neighbour = true;
+			}
+		}
+		return neighbour;
+	}
+	
+	public int size() {
+		return size;
+	}
+	public long hash() {
+		return hash;
+	}
+	public int version() {
+		return version;
+	}
+	/* The Zobrist key of a brick with the given code at the given cell. */
+	public static long zobrist(int x, int y, int code) {
+		return mix(((long)cell(x, y) << 8 | code) + 0x9e3779b97f4a7c15L);
+	}
+	/* The finalizer of SplitMix64; turns consecutive inputs into independent-looking 64-bit keys. */
+	public static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+	/* How many bricks with the given code are on the board. */
+	public int count(int code) {
+		return codeCount[code];
+	}
+	/* The occupied cells, in no particular order. */
+	public int cellAt(int index) {
+		return cells[index];
+	}
+	
+	public int minX() {
+		return minX;
+	}
+	public int minY() {
+		return minY;
+	}
+	public int maxX() {
+		return maxX;
+	}
+	public int maxY() {
+		return maxY;
+	}
+	
+	public void put(int x, int y, int code) {
+		assert(isEmpty(x, y));
+		if (x - originX < 1 || y - originY < 1 || x - originX >= width - 1 || y - originY >= height - 1) {
+			grow(x, y);
+		}
+		grid[(y - originY) * width + x - originX] = (byte)(code + 1);
+		++version;
+		if (size == cells.length) {
+			cells = java.util.Arrays.copyOf(cells, size * 2);
+		}
+		for (int axis = 0; axis < 2; ++axis) {
+			final int dx = kDX[axis];
+			final int dy = kDY[axis];
+			final int before = lineAt(x - dx, y - dy, axis);
+			final int after = lineAt(x + dx, y + dy, axis);
+			int line;
+			if (before >= 0) {
+				line = before;
+				if (after >= 0) {
+					lineLength[line] += lineLength[after];
+					lineColors[line] |= lineColors[after];
+					lineShapes[line] |= lineShapes[after];
+					for (int xx = x + dx, yy = y + dy; !isEmpty(xx, yy); xx += dx, yy += dy) {
+						setLine(xx, yy, axis, line);
+					}
+					freeLine(after);
+				}
+			} else if (after >= 0) {
+				line = after;
+			} else {
+				line = newLine();
+			}
+			setLine(x, y, axis, line);
+			++lineLength[line];
+			lineColors[line] |= 1 << (code / Brick.kShapes);
+			lineShapes[line] |= 1 << (code % Brick.kShapes);
+			invalidateEnds(x, y, axis);
+		}
+		removeFrontier(x, y);
+		addFrontier(x + 1, y);
+		addFrontier(x - 1, y);
+		addFrontier(x, y + 1);
+		addFrontier(x, y - 1);
+		cells[size++] = cell(x, y);
+		++codeCount[code];
+		hash ^= zobrist(x, y, code);
+		if (size == 1) {
+			minX = maxX = x;
+			minY = maxY = y;
+		} else {
+			minX = Math.min(minX, x);
+			maxX = Math.max(maxX, x);
+			minY = Math.min(minY, y);
+			maxY = Math.max(maxY, y);
+		}
+	}
+	
+	/* Removes and returns the code of the brick at the given position. This is cheapest for the brick placed last. */
+	public int remove(int x, int y) {
+		final int code = codeAt(x, y);
+		assert(code >= 0);
+		grid[(y - originY) * width + x - originX] = 0;
+		++version;
+		for (int axis = 0; axis < 2; ++axis) {
+			final int dx = kDX[axis];
+			final int dy = kDY[axis];
+			final int line = lineAt(x, y, axis);
+			setLine(x, y, axis, -1);
+			final boolean before = !isEmpty(x - dx, y - dy);
+			final boolean after = !isEmpty(x + dx, y + dy);
+			if (before) {
+				relabel(x - dx, y - dy, -dx, -dy, axis, line);
+			}
+			if (after) {
+				relabel(x + dx, y + dy, dx, dy, axis, before ? newLine() : line);
+			}
+			if (!before && !after) {
+				freeLine(line);
+			}
+			invalidateEnds(x, y, axis);
+		}
+		legal[(y - originY) * width + x - originX] = kStale;
+		if (hasNeighbour(x, y)) addFrontier(x, y);
+		if (!hasNeighbour(x + 1, y)) removeFrontier(x + 1, y);
+		if (!hasNeighbour(x - 1, y)) removeFrontier(x - 1, y);
+		if (!hasNeighbour(x, y + 1)) removeFrontier(x, y + 1);
+		if (!hasNeighbour(x, y - 1)) removeFrontier(x, y - 1);
+		final int c = cell(x, y);
+		int i = size - 1;
+		while (cells[i] != c) --i;
+		cells[i] = cells[--size];
+		--codeCount[code];
+		hash ^= zobrist(x, y, code);
+		if (x == minX || x == maxX || y == minY || y == maxY) {
+			recomputeBounds();
+		}
+		return code;
+	}
+	
+	private void setLine(int x, int y, int axis, int line) {
+		lineOf[2 * ((y - originY) * width + x - originX) + axis] = (short)(line + 1);
+	}
+	
+	/* Assigns the run of bricks starting at (x, y) and going in direction (dx, dy) to the given line. */
+	private void relabel(int x, int y, int dx, int dy, int axis, int line) {
+		lineLength[line] = 0;
+		lineColors[line] = 0;
+		lineShapes[line] = 0;
+		for (int code = codeAt(x, y); code >= 0; x += dx, y += dy, code = codeAt(x, y)) {
+			setLine(x, y, axis, line);
+			++lineLength[line];
+			lineColors[line] |= 1 << (code / Brick.kShapes);
+			lineShapes[line] |= 1 << (code % Brick.kShapes);
+		}
+	}
+	
+	/* Marks the cached codes of the empty cells at both ends of the line through (x, y) as stale. */
+	private void invalidateEnds(int x, int y, int axis) {
+		final int dx = kDX[axis];
+		final int dy = kDY[axis];
+		int xx = x + dx;
+		int yy = y + dy;
+		while (!isEmpty(xx, yy)) {
+			xx += dx;
+			yy += dy;
+		}
+		legal[(yy - originY) * width + xx - originX] = kStale;
+		xx = x - dx;
+		yy = y - dy;
+		while (!isEmpty(xx, yy)) {
+			xx -= dx;
+			yy -= dy;
+		}
+		legal[(yy - originY) * width + xx - originX] = kStale;
+	}
+	
+	private boolean hasNeighbour(int x, int y) {
+		return !isEmpty(x + 1, y) || !isEmpty(x - 1, y) || !isEmpty(x, y + 1) || !isEmpty(x, y - 1);
+	}
+	
+	/* Adds an empty cell to the frontier unless it is already part of it. */
+	private void addFrontier(int x, int y) {
+		final int i = (y - originY) * width + x - originX;
+		if (frontierIndex[i] > 0 || grid[i] != 0) {
+			return;
+		}
+		if (frontierSize == frontier.length) {
+			frontier = java.util.Arrays.copyOf(frontier, frontierSize * 2);
+		}
+		frontier[frontierSize++] = cell(x, y);
+		frontierIndex[i] = (short)frontierSize;
+	}
+	private void removeFrontier(int x, int y) {
+		final int i = (y - originY) * width + x - originX;
+		final int index = frontierIndex[i] - 1;
+		if (index < 0) {
+			return;
+		}
+		frontierIndex[i] = 0;
+		final int last = frontier[--frontierSize];
+		if (index < frontierSize) {
+			frontier[index] = last;
+			frontierIndex[(cellY(last) - originY) * width + cellX(last) - originX] = (short)(index + 1);
+		}
+	}
+	
+	private int newLine() {
+		final int line;
+		if (nrFreeLines > 0) {
+			line = freeLines[--nrFreeLines];
+		} else {
+			if (nrLines == lineLength.length) {
+				lineLength = java.util.Arrays.copyOf(lineLength, nrLines * 2);
+				lineColors = java.util.Arrays.copyOf(lineColors, nrLines * 2);
+				lineShapes = java.util.Arrays.copyOf(lineShapes, nrLines * 2);
+				freeLines = java.util.Arrays.copyOf(freeLines, nrLines * 2);
+			}
+			line = nrLines++;
+		}
+		lineLength[line] = 0;
+		lineColors[line] = 0;
+		lineShapes[line] = 0;
+		return line;
+	}
+	
+	private void freeLine(int line) {
+		freeLines[nrFreeLines++] = line;
+	}
+	
+	private void recomputeBounds() {
+		if (size == 0) {
+			minX = minY = maxX = maxY = 0;
+			return;
+		}
+		minX = maxX = cellX(cells[0]);
+		minY = maxY = cellY(cells[0]);
+		for (int i = 1; i < size; ++i) {
+			minX = Math.min(minX, cellX(cells[i]));
+			maxX = Math.max(maxX, cellX(cells[i]));
+			minY = Math.min(minY, cellY(cells[i]));
+			maxY = Math.max(maxY, cellY(cells[i]));
+		}
+	}
+	
+	/* Doubles the grid in every direction until (x, y) and its neighbours fit. */
+	private void grow(int x, int y) {
+		int w = width;
+		int h = height;
+		int ox = originX;
+		int oy = originY;
+		while (x - ox < 1 || x - ox >= w - 1) {
+			ox -= w / 2;
+			w *= 2;
+		}
+		while (y - oy < 1 || y - oy >= h - 1) {
+			oy -= h / 2;
+			h *= 2;
+		}
+		byte[] g = new byte[w * h];
+		short[] l = new short[2 * w * h];
+		short[] f = new short[w * h];
+		long[] c = new long[w * h];
+		java.util.Arrays.fill(c, kStale);
+		for (int row = 0; row < height; ++row) {
+			final int to = (row + originY - oy) * w + originX - ox;
+			System.arraycopy(grid, row * width, g, to, width);
+			System.arraycopy(lineOf, 2 * row * width, l, 2 * to, 2 * width);
+			System.arraycopy(frontierIndex, row * width, f, to, width);
+			System.arraycopy(legal, row * width, c, to, width);
+		}
+		grid = g;
+		lineOf = l;
+		frontierIndex = f;
+		legal = c;
+		width = w;
+		height = h;
+		originX = ox;
+		originY = oy;
+	}
+}
@@ -1,7 +1,27 @@
 public class Brick {
+	public static final int kColors = 6;
+	public static final int kShapes = 6;
+	public static final int kTypes = kColors * kShapes;
+	
+	private static final Brick[] kBricks = new Brick[kTypes];
+	static {
+		for (int i = 0; i < kTypes; ++i) kBricks[i] = new Brick(i / kShapes, i % kShapes);
+	}
+	
 	public final int color, shape;
-	public Brick(int c, int s) {
+	private Brick(int c, int s) {
 		color = c;
 		shape = s;
 	}
+	
+	/* All bricks of the same colour and shape share one instance. */
+	public static Brick of(int c, int s) {
+		return kBricks[c * kShapes + s];
+	}
+	public static Brick of(int code) {
+		return kBricks[code];
+	}
+	public int code() {
+		return color * kShapes + shape;
+	}
 }
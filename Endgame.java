@@ -0,0 +1,190 @@
+import java.util.*;
+
+/* Solves the end of a game exactly.
+ *
+ * Once the bag is empty, nobody can swap or draw any more. In a game of two players, the bricks
+ * the current player cannot see are then exactly the other player's rack, so nothing is hidden
+ * and the rest of the game can be searched to its end. The value of a position is the number of
+ * points the player to move will gain until the end of the game minus those the other player
+ * will gain, including the bonus for placing the last brick. A player who cannot place any brick
+ * passes, and the game ends when both players pass in a row.
+ *
+ * The search is a negamax alpha-beta search. Moves that place the last brick are tried first,
+ * then the best move found for the position before, then the others by their points. Positions
+ * are cached in a transposition table, which may be shared with a Search.
+ *
+ * With six bricks on each rack, there are usually too many ways to play out the game to solve it
+ * in time. The solver gives up after kMaxNodes positions or when the time is up, and then leaves
+ * the move to a heuristic search; a turn or two later, it usually succeeds. */
+public class Endgame {
+
+	/* The number of positions searched at most, so that a game without time limits can be repeated. */
+	public static final int kMaxNodes = Integer.getInteger("rowsandcols.endgamenodes", 50000);
+
+	/* Larger than any difference in points. */
+	private static final int kInfinity = 1 << 20;
+	/* How many nodes are searched between looking at the clock. */
+	private static final int kClockInterval = 1024;
+
+	private final TranspositionTable table;
+	private volatile boolean cancelled;
+	/* System.nanoTime() when the time is up, or 0 for no limit. */
+	private long deadline;
+	private boolean stopped;
+	private long nodes;
+	private int depth;
+
+	public Endgame(TranspositionTable t) {
+		table = t;
+	}
+
+	/* Whether the game is at a point where it can be solved. */
+	public static boolean applies(Engine e) {
+		return e.bagSize() == 0 && e.getPlayers().length == 2 && !e.isGameOver() && e.placedCount() == 0;
+	}
+
+	/* Makes the running search, if any, give up. Can be called from any thread. */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/* Returns the best move for the current player, or a result without a move if no bricks can be placed. The result's value is exact and its depth the length of the
+	 * longest line of play searched, in turns. Returns null if the game cannot be solved, or not
+	 * within kMaxNodes positions and the given number of milliseconds (0 for no limit). The
+	 * legality checks made are
+	 * added to the engine's count. */
+	public Search.Result solve(Engine engine, long millis) {
+		if (!applies(engine)) {
+			return null;
+		}
+		cancelled = false;
+		stopped = false;
+		deadline = millis > 0 ? Math.max(1, System.nanoTime() + millis * 1000000) : 0;
+		nodes = 0;
+		depth = 0;
+		table.newSearch();
+		final Engine e = new Engine(engine);
+		final MoveGenerator gen = new MoveGenerator(e);
+		final ArrayList<Player.DefaultMove> moves = order(e, gen, 0);
+		Player.DefaultMove best = null;
+		int alpha = -kInfinity;
+		for (Player.DefaultMove m : moves) {
+			final int v = value(e, gen, m, alpha, kInfinity, 0);
+			if (v > alpha) {
+				alpha = v;
+				best = m;
+			}
+		}
+		/* Passing, if no brick can be placed. */
+		if (moves.isEmpty()) {
+			alpha = 0;
+			if (e.passCount() + 1 < 2) {
+				e.pushTurn();
+				alpha = -solve(e, gen, e.passCount() + 1, -kInfinity, kInfinity, 1);
+				e.popTurn();
+			}
+		}
+		engine.countLegalityChecks(e.legalityChecks());
+		if (stopped) {
+			return null;
+		}
+		return new Search.Result(best, alpha, nodes, e.legalityChecks(), depth);
+	}
+
+	/* The value of the position for the player to move, who is the given number of turns away from
+	 * the root and follows as many players who passed. */
+	private int solve(Engine e, MoveGenerator gen, int passes, int alpha, int beta, int ply) {
+		if (stop()) {
+			return 0;
+		}
+		depth = Math.max(depth, ply);
+		final long key = e.hash() ^ Board.mix(0xe4d0 + passes);
+		final long entry = table.probe(key);
+		if (entry != 0) {
+			final int v = TranspositionTable.value(entry);
+			switch (TranspositionTable.bound(entry)) {
+				case TranspositionTable.kExact: return v;
+				case TranspositionTable.kLower: alpha = Math.max(alpha, v); break;
+				case TranspositionTable.kUpper: beta = Math.min(beta, v); break;
+			}
+			if (alpha >= beta) return v;
+		}
+		final int alpha0 = alpha;
+		final int beta0 = beta;
+
+		final ArrayList<Player.DefaultMove> moves = order(e, gen, entry == 0 ? 0 : TranspositionTable.move(entry));
+		int best = -kInfinity;
+		int bestMove = 0;
+		for (Player.DefaultMove m : moves) {
+			/* After the first move, only whether a move is better is found out, unless it is. */
+			int v = best == -kInfinity ? value(e, gen, m, alpha, beta, ply) : value(e, gen, m, alpha, alpha + 1, ply);
+			if (v > alpha && v < beta && best != -kInfinity) v = value(e, gen, m, v, beta, ply);
+			if (stopped) return 0;
+			if (v > best) {
+				best = v;
+				bestMove = (int)m.key;
+			}
+			alpha = Math.max(alpha, v);
+			if (alpha >= beta) break;
+		}
+		/* Passing if no brick can be placed, which ends the game if the other player just passed. */
+		if (moves.isEmpty()) {
+			best = 0;
+			if (passes + 1 < 2) {
+				e.pushTurn();
+				best = -solve(e, gen, passes + 1, -beta, -alpha, ply + 1);
+				e.popTurn();
+				if (stopped) return 0;
+			}
+		}
+		final int bound = best <= alpha0 ? TranspositionTable.kUpper :
+				best >= beta0 ? TranspositionTable.kLower : TranspositionTable.kExact;
+		table.store(key, best, 63, bound, bestMove);
+		return best;
+	}
+
+	/* The value of playing the move for the player making it. */
+	private int value(Engine e, MoveGenerator gen, Player.DefaultMove m, int alpha, int beta, int ply) {
+		final int gain = Search.gain(e, m);
+		if (Search.make(e, m)) {
+			Search.unmake(e, m);
+			return gain;
+		}
+		final int v = gain - solve(e, gen, 0, gain - beta, gain - alpha, ply + 1);
+		Search.unmake(e, m);
+		return v;
+	}
+
+	/* The moves of the player to move, those that end the game first, then the given one. */
+	private static ArrayList<Player.DefaultMove> order(final Engine e, MoveGenerator gen, int first) {
+		final ArrayList<Player.DefaultMove> moves = gen.generate(e.getPlayers()[e.getCurrentPlayer()].getBricks());
+		for (int i = 0; i < moves.size(); ++i) {
+			if (first != 0 && (moves.get(i).key & 0xffff) == first) {
+				moves.add(0, moves.remove(i));
+				break;
+			}
+		}
+		final int rack = rackSize(e);
+		int n = 0;
+		for (int i = 0; i < moves.size(); ++i) {
+			if (moves.get(i).cells.length == rack) moves.add(n++, moves.remove(i));
+		}
+		return moves;
+	}
+	private static int rackSize(Engine e) {
+		int n = 0;
+		for (Brick b : e.getPlayers()[e.getCurrentPlayer()].getBricks()) {
+			if (b != null) ++n;
+		}
+		return n;
+	}
+
+	private boolean stop() {
+		if (stopped) return true;
+		if (cancelled || ++nodes > kMaxNodes ||
+				(nodes % kClockInterval == 0 && deadline != 0 && System.nanoTime() - deadline >= 0)) {
+			stopped = true;
+		}
+		return stopped;
+	}
+}
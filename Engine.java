@@ -0,0 +1,532 @@
+import java.util.*;
+
+public class Engine {
+
+	/* Is told about every change made to the game through the engine, e.g. to record it.
+	 * Copies of the engine do not inherit the listener. */
+	public interface Listener {
+		void placed(int x, int y, Brick b);
+		void unplaced();
+		void undone();
+		void swapBegun();
+		void swapped(Brick b);
+		void swapCancelled();
+		/* The swapped bricks, if any, were put back into the bag at the given positions, see endTurn(int[]). */
+		void turnEnded(int[] positions);
+	}
+
+	private final Board board;
+	private final Bag bag;
+
+	private Player[] players;
+	private int currentPlayer;
+	private boolean gameOver;
+	private int passes;
+	private final int[] bricksPlaced;
+	private int nrBricksPlaced;
+	/* How many points each brick of this turn added to the turn's score, see scoreTurn(). */
+	private final int[] placedPoints;
+	private int turnPoints;
+	private ArrayList<Brick> swappingBricks;
+	/* The bricks placed in the turns before the current one during a search, see pushTurn(). */
+	private int[] turnStack;
+	private int turnStackSize;
+	/* The cells where legalBrick may be placed, sorted, for the board version and number of
+	 * bricks placed in this turn they were computed for. Within one board version, the bricks
+	 * placed in the turn are determined by their number. */
+	private Brick legalBrick;
+	private int legalVersion;
+	private int legalPlaced;
+	private int[] legalCells;
+	private int nrLegalCells;
+	/* Identifies the game across saving and loading. */
+	private long gameId;
+	/* The number of changes that were reported to a listener or would have been. */
+	private long actions;
+	private Listener listener;
+	/* Deals the bricks. Copies of the engine share it unless they are given their own, which they
+	 * need if they deal or determinize on another thread. */
+	private SplittableRandom random;
+	/* How often mayPlaceAt() was called, including by searches started from this engine. Copies start at 0. */
+	private long legalityChecks;
+
+	public Engine() {
+		board = new Board();
+		bag = new Bag();
+		bricksPlaced = new int[Player.kBricksPerPlayer];
+		placedPoints = new int[Player.kBricksPerPlayer];
+		players = new Player[0];
+		turnStack = new int[64];
+		legalCells = new int[64];
+		random = new SplittableRandom();
+	}
+
+	/* Creates a deep copy, e.g. for a thread searching for moves on its own. */
+	public Engine(Engine e) {
+		this(e, e.random);
+	}
+	/* Creates a deep copy that deals bricks with the given random generator instead of sharing the original's. */
+	public Engine(Engine e, SplittableRandom r) {
+		board = new Board(e.board);
+		bag = new Bag(e.bag);
+		players = new Player[e.players.length];
+		for (int i = 0; i < players.length; ++i) players[i] = new Player(e.players[i]);
+		currentPlayer = e.currentPlayer;
+		gameOver = e.gameOver;
+		passes = e.passes;
+		bricksPlaced = e.bricksPlaced.clone();
+		nrBricksPlaced = e.nrBricksPlaced;
+		placedPoints = e.placedPoints.clone();
+		turnPoints = e.turnPoints;
+		swappingBricks = e.swappingBricks == null ? null : new ArrayList<>(e.swappingBricks);
+		turnStack = e.turnStack.clone();
+		turnStackSize = e.turnStackSize;
+		legalCells = new int[64];
+		gameId = e.gameId;
+		actions = e.actions;
+		random = r;
+	}
+
+	private void clear() {
+		gameOver = false;
+		passes = 0;
+		currentPlayer = 0;
+		board.clear();
+		bag.clear();
+		nrBricksPlaced = 0;
+		turnPoints = 0;
+		turnStackSize = 0;
+		swappingBricks = null;
+		actions = 0;
+	}
+
+	public void newGame(String[] plNames, boolean[] ai) {
+		newGame(plNames, ai, new SplittableRandom());
+	}
+	/* Starts a new game whose bricks are dealt by the given random generator, e.g. to replay a game from a seed. */
+	public void newGame(String[] plNames, boolean[] ai, SplittableRandom r) {
+		clear();
+		random = r;
+		gameId = random.nextLong();
+		for (int i = 0; i < 6; ++i) {
+			for (int j = 0; j < 6; ++j) {
+				for (int k = 0; k < 3; ++k) {
+					bag.put(Brick.of(i, j), random);
+				}
+			}
+		}
+		board.put(0, 0, bag.draw().code());
+		players = new Player[plNames.length];
+		for (int i = 0; i < players.length; ++i) {
+			players[i] = new Player(plNames[i], ai[i]);
+			for (int j = 0; j < Player.kBricksPerPlayer; ++j) {
+				players[i].getBricks()[j] = bag.draw();
+			}
+		}
+	}
+
+	public void setListener(Listener l) {
+		listener = l;
+	}
+	public long gameId() {
+		return gameId;
+	}
+	public long actionCount() {
+		return actions;
+	}
+	/* Draws a seed from the random generator that deals the bricks, e.g. for a search that needs random numbers of its own. */
+	public long seed() {
+		return random.nextLong();
+	}
+	public long legalityChecks() {
+		return legalityChecks;
+	}
+	public void countLegalityChecks(long n) {
+		legalityChecks += n;
+	}
+
+	public Player[] getPlayers() {
+		return players;
+	}
+	public int getCurrentPlayer() {
+		return currentPlayer;
+	}
+	public boolean isGameOver() {
+		return gameOver;
+	}
+	public int bagSize() {
+		return bag.size();
+	}
+
+	public Board getBoard() {
+		return board;
+	}
+	public Brick brickAt(int x, int y) {
+		return board.brickAt(x, y);
+	}
+
+	public int placedCount() {
+		return nrBricksPlaced;
+	}
+	public int placedAt(int index) {
+		return bricksPlaced[index];
+	}
+	public boolean isPlaced(int x, int y) {
+		final int c = Board.cell(x, y);
+		for (int i = 0; i < nrBricksPlaced; ++i) {
+			if (bricksPlaced[i] == c) return true;
+		}
+		return false;
+	}
+
+	/* The brick that will be drawn from the bag after the given number of others. */
+	public Brick bagAt(int index) {
+		return bag.at(index);
+	}
+	/* How many players in a row have passed. */
+	public int passCount() {
+		return passes;
+	}
+	public boolean isSwapping() {
+		return swappingBricks != null;
+	}
+	public Brick swappedAt(int index) {
+		return swappingBricks.get(index);
+	}
+	public int swapCount() {
+		return swappingBricks == null ? 0 : swappingBricks.size();
+	}
+
+	private void giveBack(Brick b) {
+		final Brick[] rack = players[currentPlayer].getBricks();
+		for (int i = 0;; ++i) {
+			if (rack[i] == null) {
+				rack[i] = b;
+				return;
+			}
+		}
+	}
+
+	public boolean mayPlaceAt(Brick currentBrick, int x, int y) {
+		++legalityChecks;
+		if (nrBricksPlaced > 0) {
+			/* All bricks placed in a turn must form a contiguous part of one line,
+			 * and this line must contain a brick that was there before the turn. */
+			final int qx = Board.cellX(bricksPlaced[0]);
+			final int qy = Board.cellY(bricksPlaced[0]);
+			final int axis;
+			if (x == qx) {
+				axis = Board.kVertical;
+			} else if (y == qy) {
+				axis = Board.kHorizontal;
+			} else {
+				return false;
+			}
+			if (nrBricksPlaced > 1 && (Board.cellX(bricksPlaced[1]) == qx) != (axis == Board.kVertical)) {
+				return false;
+			}
+			final int line = board.lineAt(qx, qy, axis);
+			if (board.lineLength(line) < 2) {
+				return false;
+			}
+			if (axis == Board.kVertical ? board.lineAt(x, y - 1, axis) != line && board.lineAt(x, y + 1, axis) != line
+					: board.lineAt(x - 1, y, axis) != line && board.lineAt(x + 1, y, axis) != line) {
+				return false;
+			}
+		}
+		return board.fits(x, y, currentBrick.code());
+	}
+
+	/* Whether the current player could place any brick of the rack, or the given one taken from it,
+	 * at the start of the turn. Otherwise the player has to pass or swap. */
+	public boolean canPlaceAny(Brick held) {
+		long codes = held == null ? 0 : 1L << held.code();
+		for (Brick b : players[currentPlayer].getBricks()) {
+			if (b != null) codes |= 1L << b.code();
+		}
+		for (int i = 0; i < board.frontierSize(); ++i) {
+			final int x = Board.cellX(board.frontierAt(i));
+			final int y = Board.cellY(board.frontierAt(i));
+			long fit = board.legalCodes(x, y) & codes;
+			for (; fit != 0; fit &= fit - 1) {
+				if (board.fits(x, y, Long.numberOfTrailingZeros(fit))) return true;
+			}
+		}
+		return false;
+	}
+
+	/* Whether the brick may be placed at the given position, looked up in the cached set of legal cells. */
+	public boolean isLegal(Brick b, int x, int y) {
+		updateLegalCells(b);
+		return Arrays.binarySearch(legalCells, 0, nrLegalCells, Board.cell(x, y)) >= 0;
+	}
+	/* The number of cells where the brick may be placed in this turn. */
+	public int legalCellCount(Brick b) {
+		updateLegalCells(b);
+		return nrLegalCells;
+	}
+	/* The cell (see Board.cell()) with the given index among those where the brick may be placed. */
+	public int legalCellAt(Brick b, int index) {
+		updateLegalCells(b);
+		return legalCells[index];
+	}
+	private void updateLegalCells(Brick b) {
+		if (b == legalBrick && board.version() == legalVersion && nrBricksPlaced == legalPlaced) {
+			return;
+		}
+		legalBrick = b;
+		legalVersion = board.version();
+		legalPlaced = nrBricksPlaced;
+		nrLegalCells = 0;
+		if (b == null) {
+			return;
+		}
+		if (legalCells.length < board.frontierSize()) legalCells = new int[board.frontierSize() * 2];
+		for (int i = 0; i < board.frontierSize(); ++i) {
+			final int c = board.frontierAt(i);
+			if (mayPlaceAt(b, Board.cellX(c), Board.cellY(c))) {
+				legalCells[nrLegalCells++] = c;
+			}
+		}
+		Arrays.sort(legalCells, 0, nrLegalCells);
+	}
+
+	/* The brick scores every line through it that has at least two bricks, and takes over the
+	 * lines of this turn it joins, which were already scored. */
+	public void place(int x, int y, Brick b) {
+		int points = 0;
+		for (int axis = 0; axis < 2; ++axis) {
+			for (int dir = -1; dir <= 1; dir += 2) {
+				final int line = board.lineAt(axis == Board.kHorizontal ? x + dir : x,
+						axis == Board.kVertical ? y + dir : y, axis);
+				if (line >= 0 && isScored(line, axis)) points -= linePoints(board.lineLength(line));
+			}
+		}
+		board.put(x, y, b.code());
+		for (int axis = 0; axis < 2; ++axis) {
+			points += linePoints(board.lineLength(board.lineAt(x, y, axis)));
+		}
+		placedPoints[nrBricksPlaced] = points;
+		turnPoints += points;
+		bricksPlaced[nrBricksPlaced++] = Board.cell(x, y);
+		++actions;
+		if (listener != null) listener.placed(x, y, b);
+	}
+	public void place(int x, int y, int index) {
+		final Brick[] rack = players[currentPlayer].getBricks();
+		place(x, y, rack[index]);
+		rack[index] = null;
+	}
+	/* Takes back the brick placed last in this turn without returning it to any rack. */
+	public Brick unplace() {
+		final int c = bricksPlaced[--nrBricksPlaced];
+		turnPoints -= placedPoints[nrBricksPlaced];
+		final Brick b = Brick.of(board.remove(Board.cellX(c), Board.cellY(c)));
+		++actions;
+		if (listener != null) listener.unplaced();
+		return b;
+	}
+
+	public void undo() {
+		if (swappingBricks != null) {
+			for (Brick b : swappingBricks) giveBack(b);
+			swappingBricks = null;
+		}
+		while (nrBricksPlaced > 0) {
+			final int c = bricksPlaced[--nrBricksPlaced];
+			giveBack(Brick.of(board.remove(Board.cellX(c), Board.cellY(c))));
+		}
+		turnPoints = 0;
+		++actions;
+		if (listener != null) listener.undone();
+	}
+
+	public void beginSwap() {
+		swappingBricks = new ArrayList<>();
+		++actions;
+		if (listener != null) listener.swapBegun();
+	}
+	public void cancelSwap() {
+		if (swappingBricks != null) {
+			for (Brick b : swappingBricks) giveBack(b);
+			swappingBricks = null;
+		}
+		++actions;
+		if (listener != null) listener.swapCancelled();
+	}
+	public boolean swap(int index) {
+		final Brick[] rack = players[currentPlayer].getBricks();
+		if (swappingBricks == null || rack[index] == null || swappingBricks.size() >= bag.size()) {
+			return false;
+		}
+		final Brick b = rack[index];
+		swappingBricks.add(b);
+		rack[index] = null;
+		++actions;
+		if (listener != null) listener.swapped(b);
+		return true;
+	}
+
+	/* Points for the bricks placed in this turn so far. Kept up to date by place() and unplace(). */
+	public int scoreTurn() {
+		return turnPoints;
+	}
+	private static int linePoints(int length) {
+		return length < 2 ? 0 : length < 6 ? length : 12;
+	}
+	/* Whether one of the bricks placed in this turn lies on the given line. */
+	private boolean isScored(int line, int axis) {
+		for (int i = 0; i < nrBricksPlaced; ++i) {
+			if (board.lineAt(Board.cellX(bricksPlaced[i]), Board.cellY(bricksPlaced[i]), axis) == line) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* Hash of the position as far as searches are concerned: the board, the racks and the player to move.
+	 * Bricks placed in the current turn are part of the board. */
+	public long hash() {
+		long h = board.hash() ^ Board.mix(0x51de + currentPlayer);
+		for (int p = 0; p < players.length; ++p) {
+			long rack = 0;
+			for (Brick b : players[p].getBricks()) {
+				if (b != null) rack += Board.mix(0x4ac0000L + (p << 8 | b.code()));
+			}
+			h ^= Board.mix(rack + p);
+		}
+		return h;
+	}
+
+	/* Hands the turn to the next player without scoring the bricks placed so far, refilling
+	 * the rack or drawing from the bag. Used by searches to look ahead; popTurn() reverts this. */
+	public void pushTurn() {
+		if (turnStackSize + 2 * nrBricksPlaced + 1 > turnStack.length) {
+			turnStack = Arrays.copyOf(turnStack, turnStack.length * 2);
+		}
+		System.arraycopy(bricksPlaced, 0, turnStack, turnStackSize, nrBricksPlaced);
+		turnStackSize += nrBricksPlaced;
+		System.arraycopy(placedPoints, 0, turnStack, turnStackSize, nrBricksPlaced);
+		turnStackSize += nrBricksPlaced;
+		turnStack[turnStackSize++] = nrBricksPlaced;
+		nrBricksPlaced = 0;
+		turnPoints = 0;
+		currentPlayer = (currentPlayer + 1) % players.length;
+	}
+	/* Returns to the previous player's turn. All bricks placed since pushTurn() must have been unplaced. */
+	public void popTurn() {
+		assert(nrBricksPlaced == 0);
+		nrBricksPlaced = turnStack[--turnStackSize];
+		turnStackSize -= nrBricksPlaced;
+		System.arraycopy(turnStack, turnStackSize, placedPoints, 0, nrBricksPlaced);
+		turnStackSize -= nrBricksPlaced;
+		System.arraycopy(turnStack, turnStackSize, bricksPlaced, 0, nrBricksPlaced);
+		turnPoints = 0;
+		for (int i = 0; i < nrBricksPlaced; ++i) turnPoints += placedPoints[i];
+		currentPlayer = (currentPlayer + players.length - 1) % players.length;
+	}
+
+	/* Replaces the bricks the current player cannot see – the bag and the other players' racks –
+	 * by a random deal of the same bricks, so that a search does not use hidden information. */
+	public void determinize() {
+		for (int p = 0; p < players.length; ++p) {
+			if (p == currentPlayer) continue;
+			for (Brick b : players[p].getBricks()) {
+				if (b != null) bag.add(b);
+			}
+		}
+		bag.shuffle(random);
+		for (int p = 0; p < players.length; ++p) {
+			if (p == currentPlayer) continue;
+			final Brick[] rack = players[p].getBricks();
+			for (int i = 0; i < rack.length; ++i) {
+				if (rack[i] != null) rack[i] = bag.draw();
+			}
+		}
+	}
+
+	/* Scores the current turn, refills the rack and passes on to the next player.
+	 * Returns true if this turn ended the game. When every player in turn passes
+	 * without placing or swapping any bricks, nobody can move any more and the game ends. */
+	public boolean endTurn() {
+		return endTurn(null);
+	}
+	/* Ends the turn like endTurn(), putting the swapped bricks back into the bag at the given
+	 * positions, or at random ones if positions is null. Each position is taken after the rack
+	 * was refilled and the bricks before it were inserted. */
+	public boolean endTurn(int[] swapPositions) {
+		final int[] positions = swapPositions != null ? swapPositions : new int[swapCount()];
+		final boolean over = finishTurn(positions, swapPositions == null);
+		++actions;
+		if (listener != null) listener.turnEnded(positions);
+		return over;
+	}
+	private boolean finishTurn(int[] positions, boolean atRandom) {
+		final Player player = players[currentPlayer];
+		if (nrBricksPlaced == 0 && swapCount() == 0) {
+			if (++passes >= players.length) {
+				gameOver = true;
+				return true;
+			}
+		} else {
+			passes = 0;
+		}
+		player.addPoints(scoreTurn());
+		boolean allEmpty = true;
+		for (int i = 0; i < Player.kBricksPerPlayer; ++i) {
+			if (player.getBricks()[i] == null) {
+				if (!bag.isEmpty()) {
+					allEmpty = false;
+					player.getBricks()[i] = bag.draw();
+				}
+			} else {
+				allEmpty = false;
+			}
+		}
+		if (allEmpty) {
+			gameOver = true;
+			player.addPoints(6);
+			return true;
+		}
+		if (swappingBricks != null) {
+			for (int i = 0; i < swappingBricks.size(); ++i) {
+				if (atRandom) {
+					positions[i] = bag.put(swappingBricks.get(i), random);
+				} else {
+					bag.put(swappingBricks.get(i), positions[i]);
+				}
+			}
+		}
+		++currentPlayer;
+		currentPlayer %= players.length;
+		nrBricksPlaced = 0;
+		turnPoints = 0;
+		swappingBricks = null;
+		return false;
+	}
+
+	/* Sets up a saved game. The board holds all bricks including the ones placed in the current turn,
+	 * whose cells are listed in placed. swapping is null unless the current player is swapping bricks. */
+	public void restore(long id, long actionCount, Player[] p, int current, int passCount, int[] cells,
+			int[] codes, Brick[] bag, int[] placed, Brick[] swapping) {
+		clear();
+		gameId = id;
+		players = p;
+		currentPlayer = current;
+		passes = passCount;
+		for (int i = 0; i < cells.length; ++i) {
+			boolean inTurn = false;
+			for (int c : placed) inTurn |= c == cells[i];
+			if (!inTurn) board.put(Board.cellX(cells[i]), Board.cellY(cells[i]), codes[i]);
+		}
+		/* Place this turn's bricks last so that they are scored. */
+		for (int c : placed) {
+			for (int i = 0; i < cells.length; ++i) {
+				if (cells[i] == c) place(Board.cellX(c), Board.cellY(c), Brick.of(codes[i]));
+			}
+		}
+		for (int i = bag.length - 1; i >= 0; --i) this.bag.add(bag[i]);
+		if (swapping != null) swappingBricks = new ArrayList<>(Arrays.asList(swapping));
+		actions = actionCount;
+	}
+}
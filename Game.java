@@ -13,69 +13,47 @@ public class Game {
 	private final JFrame frame;
 	private final JLabel display;
 	
-	private final Map<Point, Brick> board;
-	private final ArrayList<Brick> remainingBricks;
+	private final Engine engine;
 	
-	private Player[] players;
-	private int currentPlayer;
-	private boolean gameOver, gameNewlyStarted;
-	private final ArrayList<Point> bricksPlaced;
-	private ArrayList<Brick> swappingBricks;
+	private boolean gameNewlyStarted;
+	/* While the AI is thinking in the background, the engine must not be modified. */
+	private boolean aiThinking;
 	private final Rectangle[] brickPositions;
 	private Brick currentBrick;
+	/* Whether to highlight all cells where the held brick may be placed. */
+	private boolean showLegalCells;
 	private Point currentBrickPosition;
 	private Rectangle buttonSwap, buttonNext, buttonAI, buttonUndo;
+	private final javax.swing.Timer renderTimer;
+	private boolean dirty;
+	/* Whether the board layer was drawn again during the current frame. */
+	private boolean boardRedrawn;
+	private Telemetry.Turn turn;
 	
 	private static class Menu {
-		public static class HighscoreEntry {
-			public final String name;
-			public final long points;
-			public final int nrPlayers;
-			public HighscoreEntry(String n, long p, int i) {
-				name = n;
-				points = p;
-				nrPlayers = i;
-			}
-		}
-		private static HighscoreEntry[] loadHighscores() {
-			HighscoreEntry[] h;
+		private static final int kShownHighscores = 10;
+		private static HighscoreStore openHighscores() {
 			try {
-				java.util.List<String> list = Files.readAllLines(kHighscores.toPath());
-				h = new HighscoreEntry[list.size()];
-				int index = 0;
-				for (String ss : list) {
-					final String[] data = ss.split(",");
-					final long p = Long.valueOf(data[0]);
-					final int nr = Integer.valueOf(data[1]);
-					String str = data[2];
-					for (int i = 3; i < data.length; ++i) str += "," + data[i];
-					h[index++] = new HighscoreEntry(str, p, nr);
-				}
+				return HighscoreStore.open(kHighscores.toPath(), kLegacyHighscores.toPath());
 			} catch (Exception x) {
-				h = new HighscoreEntry[10];
-				for (int i = 0; i < h.length; ++i) h[i] = new HighscoreEntry("Nobody", 0, 0);
+				System.out.println("ERROR: Could not load highscores: " + x);
+				return null;
 			}
-			return h;
 		}
-		private static final HighscoreEntry[] highscores = loadHighscores();
-		public void registerHighscore(HighscoreEntry e) {
+		private static final HighscoreStore highscores = openHighscores();
+		/* The best entries, padded to kShownHighscores. */
+		private static java.util.List<HighscoreStore.Entry> bestHighscores() {
+			ArrayList<HighscoreStore.Entry> list = new ArrayList<>();
+			if (highscores != null) list.addAll(highscores.top(kShownHighscores));
+			while (list.size() < kShownHighscores) list.add(new HighscoreStore.Entry("Nobody", 0, 0));
+			return list;
+		}
+		public void registerHighscore(HighscoreStore.Entry e) {
 			highlightHighscore = -1;
-			for (int i = 0; i < highscores.length; ++i) {
-				if (e.points * e.nrPlayers > highscores[i].points * highscores[i].nrPlayers) {
-					highlightHighscore = i;
-					break;
-				}
-			}
-			if (highlightHighscore < 0) return;
-			for (int i = highscores.length - 1; i > highlightHighscore; --i) highscores[i] = highscores[i - 1];
-			highscores[highlightHighscore] = e;
+			if (highscores == null) return;
 			try {
-				PrintWriter w = new PrintWriter(kHighscores);
-				for (int i = 0; i < highscores.length; ++i) {
-					if (i > 0) w.println();
-					w.print(highscores[i].points + "," + highscores[i].nrPlayers + "," + highscores[i].name);
-				}
-				w.close();
+				final int rank = highscores.add(e);
+				if (rank < kShownHighscores) highlightHighscore = rank;
 			} catch (Exception x) {
 				System.out.println("ERROR: Could not save highscores: " + x);
 			}
@@ -117,9 +95,9 @@ public class Game {
 					r.y + d.height / 16);
 			g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, d.height / 36));
 			int ypos = r.y + d.height / 9;
-			int delta = d.height / (2 * highscores.length);
+			int delta = d.height / (2 * kShownHighscores);
 			int sel = 0;
-			for (HighscoreEntry e : highscores) {
+			for (HighscoreStore.Entry e : bestHighscores()) {
 				if (sel == highlightHighscore) {
 					g.setColor(new Color(0x3fcccccc, true));
 					g.fill3DRect(r.x + 2, ypos - delta * 2 / 3, r.width - 3, delta, true);
@@ -179,7 +157,7 @@ public class Game {
 			game = g;
 			header = h;
 			highlightHighscore = -1;
-			canLoad = kSavegame.isFile();
+			canLoad = game.autosave.exists();
 			selectedEntry = canLoad ? 0 : 1;
 			players = new ArrayList<>();
 			players.add(new PlayerSetting("Player 1", false));
@@ -230,7 +208,7 @@ public class Game {
 							break;
 						default:
 							if (selectedEntry == n + 3) {
-								System.exit(0);
+								game.quit();
 							} else {
 								PlayerSetting p = players.get(selectedEntry - 3);
 								p.ai = !p.ai;
@@ -247,7 +225,7 @@ public class Game {
 					}
 					break;
 				case KeyEvent.VK_ESCAPE:
-					System.exit(0);
+					game.quit();
 					break;
 				default:
 					final char c = k.getKeyChar();
@@ -281,8 +259,10 @@ public class Game {
 		new Color(0xBF00BF),
 	};
 	
+	private static final Color kColorBrick = new Color(0x111111);
+	/* Rasterises a brick. Only used to fill the atlas, see draw(Graphics2D, int, int, Brick, boolean). */
 	private static void draw(Graphics2D g, Rectangle r, Brick b) {
-		g.setColor(new Color(0x111111));
+		g.setColor(kColorBrick);
 		g.fill3DRect(r.x + 1, r.y + 1, r.width - 2, r.height - 2, true);
 		g.setColor(kBrickColors[b.color]);
 		switch (b.shape) {
@@ -362,11 +342,12 @@ public class Game {
 		int minY = -2;
 		int maxX = 4;
 		int maxY = 3;
-		for (Point p : board.keySet()) {
-			minX = Math.min(minX, p.x);
-			maxX = Math.max(maxX, p.x);
-			minY = Math.min(minY, p.y);
-			maxY = Math.max(maxY, p.y);
+		final Board board = engine.getBoard();
+		if (board.size() > 0) {
+			minX = Math.min(minX, board.minX());
+			maxX = Math.max(maxX, board.maxX());
+			minY = Math.min(minY, board.minY());
+			maxY = Math.max(maxY, board.maxY());
 		}
 		--minX;
 		maxX += 2;
@@ -378,33 +359,224 @@ public class Game {
 	
 	private static final Color kColorOk = new Color(0x7f3fff3f, true);
 	private static final Color kColorCancel = new Color(0x7f000000, true);
-	public synchronized void draw() {
-		final int w = display.getWidth();
-		final int h = display.getHeight();
-		final int whm = Math.max(w, h);
+	private static final Color kColorLegal = new Color(0x303fff3f, true);
+	private static final Color kColorPlaced = new Color(0x10bfbfbf, true);
+	private static final Color kColorRack = new Color(0x7f222222, true);
+	private static final Color kColorScores = new Color(0xcccccc);
+	private static final Color kTextEnabled = new Color(0xdddddd);
+	private static final Color kTextDisabled = new Color(0xa0444444, true);
+	
+	/* An image that is kept in video memory and only redrawn when its contents become invalid. */
+	private abstract class Layer {
+		private VolatileImage image;
+		/* Used instead when the display is not on screen, see drawTo(). */
+		private BufferedImage buffer;
+		private boolean valid;
 		
-		BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-		Graphics2D g = img.createGraphics();
+		abstract void paint(Graphics2D g, int w, int h);
 		
-		for (int i = 0; i < whm * 2; i++) {
-			int c = 255 * i / (whm * 2);
-			g.setColor(new Color(c, c, c));
-			if (w > h)
-				g.drawLine(i, 0, 0, i * h / w);
-			else
-				g.drawLine(i * w / h, 0, 0, i);
+		void invalidate() {
+			valid = false;
+		}
+		/* Returns the image at the given size, repainting it if necessary. */
+		Image get(int w, int h) {
+			final GraphicsConfiguration gc = display.getGraphicsConfiguration();
+			if (gc == null) {
+				if (buffer == null || buffer.getWidth() != w || buffer.getHeight() != h) {
+					buffer = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+					valid = false;
+				}
+				if (!valid) {
+					Graphics2D g = buffer.createGraphics();
+					paint(g, w, h);
+					g.dispose();
+					valid = true;
+				}
+				return buffer;
+			}
+			do {
+				final int status = image == null || image.getWidth() != w || image.getHeight() != h ?
+						VolatileImage.IMAGE_INCOMPATIBLE : image.validate(gc);
+				if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+					if (image != null) image.flush();
+					image = display.createVolatileImage(w, h);
+					valid = false;
+				} else if (status == VolatileImage.IMAGE_RESTORED) {
+					valid = false;
+				}
+				if (!valid) {
+					Graphics2D g = image.createGraphics();
+					paint(g, w, h);
+					g.dispose();
+					valid = true;
+				}
+			} while (image.contentsLost());
+			return image;
+		}
+	}
+	
+	/* The diagonal gradient behind everything. */
+	private final Layer background = new Layer() {
+		void paint(Graphics2D g, int w, int h) {
+			/* The grey value grows along the diagonal, reaching white at twice the longer side. */
+			final int whm = Math.max(w, h);
+			final float a = w > h ? 1 : (float)h / w;
+			final float b = w > h ? (float)w / h : 1;
+			final float t = 2 * whm / (a * a + b * b);
+			g.setPaint(new GradientPaint(0, 0, Color.BLACK, a * t, b * t, Color.WHITE));
+			g.fillRect(0, 0, w, h);
+		}
+	};
+	/* The background with the bricks on the board. */
+	private final Layer boardLayer = new Layer() {
+		void paint(Graphics2D g, int w, int h) {
+			boardRedrawn = true;
+			g.drawImage(background.get(w, h), 0, 0, null);
+			final Metrics dim = boardDimension();
+			final Board board = engine.getBoard();
+			atlas(dim.brickSize);
+			for (int i = 0; i < board.size(); ++i) {
+				final int x = Board.cellX(board.cellAt(i));
+				final int y = Board.cellY(board.cellAt(i));
+				draw(g, dim.brickSize * (x - dim.minX), dim.brickSize * (y - dim.minY),
+						board.brickAt(x, y), engine.isPlaced(x, y));
+			}
+		}
+	};
+	/* All bricks pre-rendered at atlasBrickSize, one column per shape and one row per colour.
+	 * Rows 6 to 11 hold the same bricks highlighted as placed in this turn. */
+	private BufferedImage atlas;
+	private int atlasBrickSize;
+	private BufferedImage atlas(int brickSize) {
+		if (atlas != null && atlasBrickSize == brickSize) {
+			return atlas;
+		}
+		atlasBrickSize = brickSize;
+		final GraphicsConfiguration gc = display.getGraphicsConfiguration();
+		atlas = gc == null ?
+				new BufferedImage(Brick.kShapes * brickSize, 2 * Brick.kColors * brickSize, BufferedImage.TYPE_INT_ARGB) :
+				gc.createCompatibleImage(Brick.kShapes * brickSize, 2 * Brick.kColors * brickSize, Transparency.TRANSLUCENT);
+		Graphics2D g = atlas.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+		for (int placed = 0; placed < 2; ++placed) {
+			for (int c = 0; c < Brick.kColors; ++c) {
+				for (int s = 0; s < Brick.kShapes; ++s) {
+					Rectangle r = new Rectangle(s * brickSize, (placed * Brick.kColors + c) * brickSize,
+							brickSize, brickSize);
+					draw(g, r, Brick.of(c, s));
+					if (placed > 0) {
+						g.setColor(kColorPlaced);
+						g.fill(r);
+					}
+				}
+			}
+		}
+		g.dispose();
+		return atlas;
+	}
+	/* Draws a brick of the current brick size with its top left corner at the given position. */
+	private void draw(Graphics2D g, int x, int y, Brick b, boolean placed) {
+		final int s = atlasBrickSize;
+		final int sx = b.shape * s;
+		final int sy = ((placed ? Brick.kColors : 0) + b.color) * s;
+		g.drawImage(atlas, x, y, x + s, y + s, sx, sy, sx + s, sy + s, null);
+	}
+	
+	/* What the board layer was last drawn for. */
+	private int boardLayerVersion, boardLayerPlaced, boardLayerBrickSize, boardLayerMinX, boardLayerMinY;
+	
+	private int fontBrickSize, fontPlayers;
+	private Font fontSignum, fontText, fontBag, fontScores, fontScoresCurrent;
+	private void updateFonts(int brickSize, int nrPlayers) {
+		if (brickSize == fontBrickSize && nrPlayers == fontPlayers) {
+			return;
+		}
+		fontBrickSize = brickSize;
+		fontPlayers = nrPlayers;
+		fontSignum = new Font(Font.SANS_SERIF, Font.BOLD, brickSize / 2);
+		fontText = new Font(Font.SANS_SERIF, Font.ITALIC, brickSize / 7);
+		fontBag = new Font(Font.SANS_SERIF, Font.BOLD, brickSize / 4);
+		fontScores = new Font(Font.SANS_SERIF, Font.PLAIN, brickSize / (nrPlayers + 1));
+		fontScoresCurrent = fontScores.deriveFont(Font.BOLD);
+	}
+	
+	/* Marks the view as out of date. Frames are composed in paint() at most once per tick of the
+	 * render timer, so bursts of input events cause a single repaint. When nothing changed during
+	 * a tick the timer stops until the next call. */
+	public void draw() {
+		dirty = true;
+		if (!renderTimer.isRunning()) {
+			renderTimer.start();
+		}
+	}
+	private void renderTick() {
+		if (!dirty) {
+			renderTimer.stop();
+			return;
+		}
+		dirty = false;
+		display.paintImmediately(0, 0, display.getWidth(), display.getHeight());
+	}
+	/* Milliseconds between frames: the screen's refresh rate, capped by the property rowsandcols.fps if set. */
+	private static int frameInterval() {
+		final int cap = Integer.getInteger("rowsandcols.fps", 0);
+		int fps = 0;
+		if (!GraphicsEnvironment.isHeadless()) {
+			fps = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+					.getDisplayMode().getRefreshRate();
+		}
+		if (cap > 0 && (fps <= 0 || cap < fps)) {
+			fps = cap;
+		}
+		if (fps <= 0) {
+			fps = 60;
+		}
+		return Math.max(1, 1000 / fps);
+	}
+	
+	/* Composes a frame into the given image, which must have the size of the display. Used to draw
+	 * a game without a window. */
+	void drawTo(BufferedImage image) {
+		Graphics2D g = image.createGraphics();
+		paint(g);
+		g.dispose();
+	}
+	
+	private synchronized void paint(Graphics2D g) {
+		final Telemetry.Frame frame = new Telemetry.Frame();
+		boardRedrawn = false;
+		compose(g);
+		frame.finish(display.getWidth(), display.getHeight(), boardRedrawn);
+	}
+	/* Composes a frame from the cached board layer, the top bar, the rack and the held brick. */
+	private void compose(Graphics2D g) {
+		final int w = display.getWidth();
+		final int h = display.getHeight();
+		if (w <= 0 || h <= 0) {
+			return;
 		}
 		
+		final Player[] players = engine.getPlayers();
+		final int currentPlayer = engine.getCurrentPlayer();
 		final Metrics dim = boardDimension();
-		for (Point p : board.keySet()) {
-			Rectangle r = new Rectangle(dim.brickSize * (p.x - dim.minX), dim.brickSize * (p.y - dim.minY),
-					dim.brickSize, dim.brickSize);
-			draw(g, r, board.get(p));
-			if (bricksPlaced.contains(p)) {
-				g.setColor(new Color(0x10bfbfbf, true));
-				g.fill(r);
-			}
+		if (dim.brickSize <= 0) {
+			return;
+		}
+		final Board board = engine.getBoard();
+		if (board.version() != boardLayerVersion || engine.placedCount() != boardLayerPlaced ||
+				dim.brickSize != boardLayerBrickSize || dim.minX != boardLayerMinX || dim.minY != boardLayerMinY) {
+			boardLayerVersion = board.version();
+			boardLayerPlaced = engine.placedCount();
+			boardLayerBrickSize = dim.brickSize;
+			boardLayerMinX = dim.minX;
+			boardLayerMinY = dim.minY;
+			boardLayer.invalidate();
 		}
+		g.drawImage(boardLayer.get(w, h), 0, 0, null);
+		updateFonts(dim.brickSize, players.length);
+		atlas(dim.brickSize);
+		
 		int playerToShowBricksFor;
 		if (!players[currentPlayer].ai) {
 			playerToShowBricksFor = currentPlayer;
@@ -424,7 +596,7 @@ public class Game {
 			}
 		}
 		if (playerToShowBricksFor >= 0) {
-			g.setColor(new Color(0x7f222222, true));
+			g.setColor(kColorRack);
 			g.fill3DRect(w - dim.brickSize * 9 / 8, dim.brickSize * 7 / 8,
 					dim.brickSize * 9 / 8, dim.brickSize * 50 / 8, false);
 			int bi = 0;
@@ -432,32 +604,32 @@ public class Game {
 				brickPositions[bi] = new Rectangle(w - dim.brickSize * 17 / 16, dim.brickSize * (bi + 1),
 						dim.brickSize, dim.brickSize);
 				if (b != null) {
-					draw(g, brickPositions[bi], b);
+					draw(g, brickPositions[bi].x, brickPositions[bi].y, b, false);
 				}
 				++bi;
 			}
 		}
 		
-		final int fontSize = dim.brickSize / (players.length + 1);
-		g.setColor(new Color(0xcccccc));
+		final int fontSize = fontScores.getSize();
+		g.setColor(kColorScores);
 		for (int i = 0; i < players.length; ++i) {
-			g.setFont(new Font(Font.SANS_SERIF, i == currentPlayer ? Font.BOLD : Font.PLAIN, fontSize));
-			final String s = players[i].name + " (" + players[i].getPoints() + ") ";
+			g.setFont(i == currentPlayer ? fontScoresCurrent : fontScores);
+			final String s = players[i].name + " (" + players[i].getPoints() +
+					(i == currentPlayer && engine.placedCount() > 0 ? ", this turn: +" + engine.scoreTurn() : "") + ") ";
 			g.drawString(s, w - (int)g.getFont().getStringBounds(s, g.getFontRenderContext()).getWidth(),
 					(i + 1) * fontSize);
 		}
 		
-		final Font kFontSignum = new Font(Font.SANS_SERIF, Font.BOLD, dim.brickSize / 2);
-		final Font kFontText = new Font(Font.SANS_SERIF, Font.ITALIC, dim.brickSize / 7);
-		final Color kTextEnabled = new Color(0xdddddd);
-		final Color kTextDisabled = new Color(0xa0444444, true);
-		final boolean enableButtonNext = !bricksPlaced.isEmpty() ||
-				(swappingBricks != null && !swappingBricks.isEmpty());
+		final Font kFontSignum = fontSignum;
+		final Font kFontText = fontText;
+		final boolean enableButtonNext = engine.placedCount() > 0 || engine.swapCount() > 0 ||
+				(!players[currentPlayer].ai && engine.bagSize() == 0 && !engine.isGameOver() &&
+				!engine.canPlaceAny(currentBrick));
 		final boolean enableButtonUndo = !players[currentPlayer].ai && enableButtonNext;
-		final boolean enableButtonSwap = !players[currentPlayer].ai && bricksPlaced.isEmpty() &&
-				((swappingBricks == null && !remainingBricks.isEmpty()) ||
-				(swappingBricks != null && swappingBricks.isEmpty()));
-		final boolean enableButtonAI = players[currentPlayer].ai && !enableButtonNext;
+		final boolean enableButtonSwap = !players[currentPlayer].ai && engine.placedCount() == 0 &&
+				((!engine.isSwapping() && engine.bagSize() > 0) ||
+				(engine.isSwapping() && engine.swapCount() == 0));
+		final boolean enableButtonAI = players[currentPlayer].ai && !enableButtonNext && !aiThinking;
 		for (int i = 0; i < 4; ++i) {
 			g.draw3DRect((2 * i + 1) * dim.brickSize + 1, 1, 2 * dim.brickSize - 2, dim.brickSize - 2, true);
 		}
@@ -488,12 +660,12 @@ public class Game {
 		
 		g.setColor(enableButtonSwap ? kTextEnabled : kTextDisabled);
 		buttonSwap = new Rectangle(5 * dim.brickSize, 0, 2 * dim.brickSize, dim.brickSize);
-		str = !enableButtonSwap || swappingBricks == null ? "⇵" : "⌧";
+		str = !enableButtonSwap || !engine.isSwapping() ? "⇵" : "⌧";
 		r = kFontSignum.getStringBounds(str, g.getFontRenderContext());
 		g.setFont(kFontSignum);
 		g.drawString(str, buttonSwap.x + (buttonSwap.width - (int)r.getWidth()) / 2,
 				(buttonSwap.height + (int)r.getHeight()) / 2);
-		str = !enableButtonSwap || swappingBricks == null ? "Swap bricks" : "Cancel swapping";
+		str = !enableButtonSwap || !engine.isSwapping() ? "Swap bricks" : "Cancel swapping";
 		r = kFontText.getStringBounds(str, g.getFontRenderContext());
 		g.setFont(kFontText);
 		g.drawString(str, buttonSwap.x + (buttonSwap.width - (int)r.getWidth()) / 2, (int)r.getHeight() + 1);
@@ -515,10 +687,10 @@ public class Game {
 		if (!enableButtonNext || menu != null) buttonNext = null;
 		if (!enableButtonUndo || menu != null) buttonUndo = null;
 		
-		if (!gameOver) {
+		if (!engine.isGameOver()) {
 			g.setColor(kTextEnabled);
-			g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, dim.brickSize / 4));
-			str = "+" + remainingBricks.size();
+			g.setFont(fontBag);
+			str = "+" + engine.bagSize();
 			g.drawString(str, (dim.brickSize - (int)g.getFont().getStringBounds(str,
 					g.getFontRenderContext()).getWidth()) / 2, dim.brickSize * 2 / 3);
 		}
@@ -534,6 +706,14 @@ public class Game {
 					break;
 				}
 			}
+			if (showLegalCells) {
+				g.setColor(kColorLegal);
+				for (int i = 0; i < engine.legalCellCount(currentBrick); ++i) {
+					final int c = engine.legalCellAt(currentBrick, i);
+					g.fillRect(dim.brickSize * (Board.cellX(c) - dim.minX), dim.brickSize * (Board.cellY(c) - dim.minY),
+							dim.brickSize, dim.brickSize);
+				}
+			}
 			if (!onBrickLoc) {
 				final Point c = coords(currentBrickPosition);
 				g.setColor(mayPlaceAt(c) ? kColorOk : kColorCancel);
@@ -541,239 +721,85 @@ public class Game {
 						dim.brickSize, dim.brickSize);
 			}
 			
-			draw(g, new Rectangle(currentBrickPosition.x - dim.brickSize / 2,
-					currentBrickPosition.y - dim.brickSize / 2, dim.brickSize, dim.brickSize), currentBrick);
+			draw(g, currentBrickPosition.x - dim.brickSize / 2, currentBrickPosition.y - dim.brickSize / 2,
+					currentBrick, false);
 		}
 		
 		if (menu != null) {
 			menu.draw(g);
 		}
-		
-		display.setIcon(new ImageIcon(img));
 	}
 	
-	public Map<Point, Brick> getBoard() {
-		return new HashMap<>(board);
+	public Engine getEngine() {
+		return engine;
 	}
 	
 	public boolean mayPlaceAt(Point p) {
-		return mayPlaceAt(currentBrick, board, bricksPlaced, p);
+		return engine.isLegal(currentBrick, p.x, p.y);
 	}
 	
-	public static boolean mayPlaceAt(Brick currentBrick, Map<Point, Brick> board,
-			ArrayList<Point> bricksPlaced, Point p) {
-		if (board.get(p) != null) {
-			return false;
-		}
-		for (Point point : bricksPlaced) {
-			if (point.x == p.x) {
-				if (board.get(new Point(point.x, point.y + 1)) == null &&
-						board.get(new Point(point.x, point.y - 1)) == null) {
-					return false;
-				}
-				for (int y = Math.min(p.y, point.y); y < p.y || y < point.y; ++y) {
-					if (y != p.y && board.get(new Point(p.x, y)) == null) {
-						return false;
-					}
-				}
-			} else if (point.y == p.y) {
-				if (board.get(new Point(point.x + 1, point.y)) == null &&
-						board.get(new Point(point.x - 1, point.y)) == null) {
-					return false;
-				}
-				for (int x = Math.min(p.x, point.x); x < p.x || x < point.x; ++x) {
-					if (x != p.x && board.get(new Point(x, p.y)) == null) {
-						return false;
-					}
-				}
-			} else {
-				return false;
-			}
-		}
-		final Brick bn = board.get(new Point(p.x, p.y - 1));
-		final Brick bs = board.get(new Point(p.x, p.y + 1));
-		final Brick bw = board.get(new Point(p.x - 1, p.y));
-		final Brick be = board.get(new Point(p.x + 1, p.y));
-		if (bn == null && bw == null && be == null && bs == null) {
-			return false;
-		}
-		if (bw != null) {
-			final boolean sameColor = currentBrick.color == bw.color;
-			final boolean sameShape = currentBrick.shape == bw.shape;
-			if (sameColor == sameShape) {
-				return false;
-			}
-			Point point = new Point(p.x - 1, p.y);
-			for (Brick brick = board.get(point); brick != null; --point.x, brick = board.get(point)) {
-				if ((sameColor && (currentBrick.color != brick.color || currentBrick.shape == brick.shape)) ||
-						(sameShape && (currentBrick.color == brick.color || currentBrick.shape != brick.shape))) {
-					return false;
-				}
-			}
-		}
-		if (be != null) {
-			final boolean sameColor = currentBrick.color == be.color;
-			final boolean sameShape = currentBrick.shape == be.shape;
-			if (sameColor == sameShape) {
-				return false;
-			}
-			Point point = new Point(p.x + 1, p.y);
-			for (Brick brick = board.get(point); brick != null; ++point.x, brick = board.get(point)) {
-				if ((sameColor && (currentBrick.color != brick.color || currentBrick.shape == brick.shape)) ||
-						(sameShape && (currentBrick.color == brick.color || currentBrick.shape != brick.shape))) {
-					return false;
-				}
-			}
-		}
-		if (bn != null) {
-			final boolean sameColor = currentBrick.color == bn.color;
-			final boolean sameShape = currentBrick.shape == bn.shape;
-			if (sameColor == sameShape) {
-				return false;
+	/* Lets the current player's AI think on a background thread, so the window stays responsive. */
+	private void startAIStep() {
+		final Player player = engine.getPlayers()[engine.getCurrentPlayer()];
+		aiThinking = true;
+		new SwingWorker<Player.Move, Void>() {
+			protected Player.Move doInBackground() {
+				return player.aiStep(engine);
 			}
-			Point point = new Point(p.x, p.y - 1);
-			for (Brick brick = board.get(point); brick != null; --point.y, brick = board.get(point)) {
-				if ((sameColor && (currentBrick.color != brick.color || currentBrick.shape == brick.shape)) ||
-						(sameShape && (currentBrick.color == brick.color || currentBrick.shape != brick.shape))) {
-					return false;
+			protected void done() {
+				aiThinking = false;
+				try {
+					applyAIStep(player, get());
+				} catch (Exception x) {
+					System.out.println("ERROR: AI step failed: " + x);
 				}
+				draw();
 			}
-		}
-		if (bs != null) {
-			final boolean sameColor = currentBrick.color == bs.color;
-			final boolean sameShape = currentBrick.shape == bs.shape;
-			if (sameColor == sameShape) {
-				return false;
-			}
-			Point point = new Point(p.x, p.y + 1);
-			for (Brick brick = board.get(point); brick != null; ++point.y, brick = board.get(point)) {
-				if ((sameColor && (currentBrick.color != brick.color || currentBrick.shape == brick.shape)) ||
-						(sameShape && (currentBrick.color == brick.color || currentBrick.shape != brick.shape))) {
-					return false;
+		}.execute();
+	}
+	
+	private void applyAIStep(Player player, Player.Move move) {
+		if (move instanceof Player.SwapMove) {
+			Player.SwapMove sm = (Player.SwapMove)move;
+			int n = sm.bricks.length;
+			JOptionPane.showMessageDialog(frame,
+					player.name + (n == 0 ? " passes." : " swaps " + n + (n == 1 ? " brick." : " bricks.")),
+					player.name, JOptionPane.INFORMATION_MESSAGE);
+			if (n == 0) {
+				nextPlayer();
+			} else {
+				engine.beginSwap();
+				for (int i : sm.bricks) {
+					engine.swap(i);
 				}
 			}
-		}
-		if (bw != null && be != null) {
-			final boolean sameColorW = currentBrick.color == bw.color;
-			final boolean sameShapeW = currentBrick.shape == bw.shape;
-			final boolean sameColorE = currentBrick.color == be.color;
-			final boolean sameShapeE = currentBrick.shape == be.shape;
-			if (sameColorW == sameShapeW || sameColorE == sameShapeE ||
-					sameColorW != sameColorE || sameShapeW != sameShapeE) {
-				return false;
-			}
-			Point p1 = new Point(p.x - 1, p.y);
-			for (Brick b1 = board.get(p1); b1 != null; --p1.x, b1 = board.get(p1)) {
-				Point p2 = new Point(p.x + 1, p.y);
-				for (Brick b2 = board.get(p2); b2 != null; ++p2.x, b2 = board.get(p2)) {
-					if ((sameColorW && (b1.color != b2.color || b1.shape == b2.shape)) ||
-							(sameShapeW && (b1.color == b2.color || b1.shape != b2.shape))) {
-						return false;
-					}
-				}
+		} else {
+			Player.DefaultMove dm = (Player.DefaultMove)move;
+			for (int i = 0; i < dm.cells.length; ++i) {
+				engine.place(Board.cellX(dm.cells[i]), Board.cellY(dm.cells[i]), dm.bricks[i]);
 			}
 		}
-		if (bn != null && bs != null) {
-			final boolean sameColorN = currentBrick.color == bn.color;
-			final boolean sameShapeN = currentBrick.shape == bn.shape;
-			final boolean sameColorS = currentBrick.color == bs.color;
-			final boolean sameShapeS = currentBrick.shape == bs.shape;
-			if (sameColorN == sameShapeN || sameColorS == sameShapeS ||
-					sameColorN != sameColorS || sameShapeN != sameShapeS) {
-				return false;
-			}
-			Point p1 = new Point(p.x, p.y - 1);
-			for (Brick b1 = board.get(p1); b1 != null; --p1.y, b1 = board.get(p1)) {
-				Point p2 = new Point(p.x, p.y + 1);
-				for (Brick b2 = board.get(p2); b2 != null; ++p2.y, b2 = board.get(p2)) {
-					if ((sameColorN && (b1.color != b2.color || b1.shape == b2.shape)) ||
-							(sameShapeN && (b1.color == b2.color || b1.shape != b2.shape))) {
-						return false;
-					}
-				}
+	}
+	
+	/* Puts the brick the player is holding back into the rack and returns its index there. */
+	private int returnCurrentBrick() {
+		final Brick[] rack = engine.getPlayers()[engine.getCurrentPlayer()].getBricks();
+		for (int i = 0;; ++i) {
+			if (rack[i] == null) {
+				rack[i] = currentBrick;
+				currentBrick = null;
+				return i;
 			}
 		}
-		return true;
 	}
 	
 	private void nextPlayer() {
-		if (!bricksPlaced.isEmpty()) {
-			ArrayList<Point[]> rowsToCount = new ArrayList<>();
-			for (Point p : bricksPlaced) {
-				int xMin = p.x;
-				int xMax = p.x;
-				int yMin = p.y;
-				int yMax = p.y;
-				for (; board.get(new Point(xMin, p.y)) != null; --xMin);
-				for (; board.get(new Point(p.x, yMin)) != null; --yMin);
-				for (; board.get(new Point(xMax, p.y)) != null; ++xMax);
-				for (; board.get(new Point(p.x, yMax)) != null; ++yMax);
-				assert(xMax > xMin);
-				assert(yMax > yMin);
-				++xMin;
-				++yMin;
-				if (xMax - xMin > 1) {
-					Point[] rx = new Point[xMax - xMin];
-					for (int x = xMin; x < xMax; ++x) rx[x - xMin] = new Point(x, p.y);
-					boolean cont = false;
-					for (Point[] r : rowsToCount) {
-						if (r.length != rx.length) continue;
-						cont = true;
-						for (int i = 0; cont && i < r.length; ++i) {
-							if (r[i].x != rx[i].x || r[i].y != rx[i].y) {
-								cont = false;
-								break;
-							}
-						}
-						if (cont) break;
-					}
-					if (!cont) rowsToCount.add(rx);
-				}
-				if (yMax - yMin > 1) {
-					Point[] ry = new Point[yMax - yMin];
-					for (int y = yMin; y < yMax; ++y) ry[y - yMin] = new Point(p.x, y);
-					boolean cont = false;
-					for (Point[] r : rowsToCount) {
-						if (r.length != ry.length) continue;
-						cont = true;
-						for (int i = 0; cont && i < r.length; ++i) {
-							if (r[i].x != ry[i].x || r[i].y != ry[i].y) {
-								cont = false;
-								break;
-							}
-						}
-						if (cont) break;
-					}
-					if (!cont) rowsToCount.add(ry);
-				}
-			}
-			for (Point[] p : rowsToCount) {
-				assert(p.length > 1);
-				assert(p.length <= 6);
-				players[currentPlayer].addPoints(p.length * (p.length < 6 ? 1 : 2));
-			}
-		}
-		boolean allEmpty = true;
-		for (int i = 0; i < Player.kBricksPerPlayer; ++i) {
-			if (players[currentPlayer].getBricks()[i] == null) {
-				Brick b = null;
-				if (currentBrick != null) {
-					b = currentBrick;
-					currentBrick = null;
-				} else if (!remainingBricks.isEmpty()) {
-					b = remainingBricks.remove(0);
-				}
-				if (b != null) {
-					allEmpty = false;
-					players[currentPlayer].getBricks()[i] = b;
-				}
-			} else {
-				allEmpty = false;
-			}
+		if (currentBrick != null) {
+			returnCurrentBrick();
 		}
-		if (allEmpty) {
-			gameOver = true;
-			players[currentPlayer].addPoints(6);
+		turn.finish(engine);
+		if (engine.endTurn()) {
+			final Player[] players = engine.getPlayers();
 			long winner = 0;
 			for (Player p : players) winner = Math.max(winner, p.getPoints());
 			ArrayList<String> winnerNames = new ArrayList<>();
@@ -793,35 +819,28 @@ public class Game {
 			}
 			menu = new Menu(this, str);
 			if (nrWinners == 1) {
-				menu.registerHighscore(new Menu.HighscoreEntry(winnerNames.get(0), winner, players.length));
+				menu.registerHighscore(new HighscoreStore.Entry(winnerNames.get(0), winner, players.length));
 			}
+			autosave.delete();
 			draw();
 			return;
 		}
-		if (swappingBricks != null) {
-			int s = remainingBricks.size();
-			for (Brick b : swappingBricks) {
-				remainingBricks.add((int)(Math.random() * ++s), b);
-			}
+		turn = new Telemetry.Turn(engine);
+		/* Later turns are recorded in the journal. */
+		gameNewlyStarted = false;
+		if (!autosave.isRecording(engine)) {
+			save();
 		}
-		++currentPlayer;
-		currentPlayer %= players.length;
-		bricksPlaced.clear();
-		swappingBricks = null;
 		currentBrickPosition = new Point(-1, -1);
 	}
 	
 	private static final File kSavegame = new File(".save");
-	private static final File kHighscores = new File(".scores");
+	private static final File kHighscores = new File(".highscores");
+	private static final File kLegacyHighscores = new File(".scores");
+	private final Autosave autosave = new Autosave(kSavegame.toPath());
 	
 	private boolean newGame(String[] plNames, boolean[] ai) {
 		gameNewlyStarted = true;
-		gameOver = false;
-		currentPlayer = 0;
-		board.clear();
-		remainingBricks.clear();
-		bricksPlaced.clear();
-		swappingBricks = null;
 		currentBrick = null;
 		currentBrickPosition = new Point(-1, -1);
 		buttonSwap = null;
@@ -830,221 +849,123 @@ public class Game {
 		buttonUndo = null;
 		if (plNames == null || ai == null) {
 			try {
-				java.util.List<String> save = Files.readAllLines(kSavegame.toPath());
-				int i = 0;
-				String[] data = save.get(i++).split(" ");
-				players = new Player[Integer.valueOf(data[0])];
-				currentPlayer = Integer.valueOf(data[1]);
-				for (int p = 0; p < players.length; ++p) {
-					final String n = save.get(i++);
-					data = save.get(i++).split(" ");
-					int j = 0;
-					final boolean a = data[j++].equals("1");
-					players[p] = new Player(n, a);
-					players[p].addPoints(Long.valueOf(data[j++]));
-					for (int b = 0; b < Player.kBricksPerPlayer; ++b) {
-						if (data[j++].equals("1")) {
-							final int s = Integer.valueOf(data[j++]);
-							final int c = Integer.valueOf(data[j++]);
-							players[p].getBricks()[b] = new Brick(c, s);
-						}
-					}
-				}
-				data = save.get(i++).split(" ");
-				int j = 0;
-				final int boardS = Integer.valueOf(data[j++]);
-				final int remBrS = Integer.valueOf(data[j++]);
-				final int brPlacedS = Integer.valueOf(data[j++]);
-				final int swapS = Integer.valueOf(data[j++]);
-				if (data[j++].equals("0")) {
-					currentBrick = null;
-				} else {
-					final int s = Integer.valueOf(data[j++]);
-					final int c = Integer.valueOf(data[j++]);
-					currentBrick = new Brick(c, s);
-				}
-				for (int b = 0; b < boardS; ++b) {
-					final int x = Integer.valueOf(data[j++]);
-					final int y = Integer.valueOf(data[j++]);
-					final int s = Integer.valueOf(data[j++]);
-					final int c = Integer.valueOf(data[j++]);
-					board.put(new Point(x, y), new Brick(c, s));
-				}
-				for (int b = 0; b < remBrS; ++b) {
-					final int s = Integer.valueOf(data[j++]);
-					final int c = Integer.valueOf(data[j++]);
-					remainingBricks.add(new Brick(c, s));
-				}
-				for (int b = 0; b < brPlacedS; ++b) {
-					final int x = Integer.valueOf(data[j++]);
-					final int y = Integer.valueOf(data[j++]);
-					bricksPlaced.add(new Point(x, y));
-				}
-				if (swapS < 0) {
-					swappingBricks = null;
-				} else {
-					swappingBricks = new ArrayList<>();
-					for (int b = 0; b < swapS; ++b) {
-						final int s = Integer.valueOf(data[j++]);
-						final int c = Integer.valueOf(data[j++]);
-						swappingBricks.add(new Brick(c, s));
-					}
-				}
+				currentBrick = autosave.load(engine);
+				turn = new Telemetry.Turn(engine);
 				gameNewlyStarted = false;
-				kSavegame.delete();
+				save();
 				menu = null;
 				return true;
 			} catch (Exception x) {
 				return false;
 			}
 		}
-		int n = 0;
-		for (int i = 0; i < 6; ++i) {
-			for (int j = 0; j < 6; ++j) {
-				for (int k = 0; k < 3; ++k) {
-					remainingBricks.add((int)(Math.random() * ++n), new Brick(i, j));
-				}
-			}
-		}
-		board.put(new Point(), remainingBricks.remove(0));
-		players = new Player[plNames.length];
-		for (int i = 0; i < players.length; ++i) {
-			players[i] = new Player(plNames[i], ai[i]);
-			for (int j = 0; j < Player.kBricksPerPlayer; ++j) {
-				players[i].getBricks()[j] = remainingBricks.remove(0);
-			}
-		}
+		autosave.stop();
+		engine.newGame(plNames, ai);
+		turn = new Telemetry.Turn(engine);
 		menu = null;
 		return true;
 	}
 	
+	/* Saves the game in the background and records all further actions. */
 	private void save() {
-		if (gameOver || gameNewlyStarted) {
+		if (engine.isGameOver() || gameNewlyStarted) {
 			return;
 		}
-		try {
-			PrintWriter w = new PrintWriter(kSavegame);
-			w.println(players.length + " " + currentPlayer);
-			for (Player p : players) {
-				w.println(p.name);
-				w.print((p.ai ? 1 : 0) + " " + p.getPoints());
-				for (Brick b : p.getBricks()) {
-					w.print(" " + (b == null ? 0 : (1 + " " + b.shape + " " + b.color)));
-				}
-				w.println();
-			}
-			w.print(board.size() + " " + remainingBricks.size() + " " +
-					bricksPlaced.size() + " " + (swappingBricks == null ? -1 : swappingBricks.size()) + " " +
-					(currentBrick == null ? 0 : "1 " + currentBrick.shape + " " + currentBrick.color));
-			for (Point p : board.keySet()) {
-				Brick b = board.get(p);
-				w.print(" " + p.x + " " + p.y + " " + b.shape + " " + b.color);
-			}
-			for (Brick b : remainingBricks) {
-				w.print(" " + b.shape + " " + b.color);
-			}
-			for (Point p : bricksPlaced) {
-				w.print(" " + p.x + " " + p.y);
-			}
-			if (swappingBricks != null) {
-				for (Brick b : swappingBricks) {
-					w.print(" " + b.shape + " " + b.color);
-				}
+		autosave.save(engine, currentBrick);
+		autosave.record(engine);
+	}
+	
+	private void quit() {
+		save();
+		autosave.flush();
+		System.exit(0);
+	}
+	
+	/* A view of the given game that is not shown in a window. It can only be drawn with drawTo(). */
+	Game(Engine e, int width, int height) {
+		frame = null;
+		display = new JLabel();
+		display.setSize(width, height);
+		renderTimer = createRenderTimer();
+		engine = e;
+		brickPositions = new Rectangle[Player.kBricksPerPlayer];
+		currentBrickPosition = new Point(-1, -1);
+		turn = new Telemetry.Turn(e);
+	}
+	
+	private javax.swing.Timer createRenderTimer() {
+		javax.swing.Timer t = new javax.swing.Timer(frameInterval(), new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				renderTick();
 			}
-			w.close();
-		} catch (Exception x) {
-			System.out.println("ERROR: Could not save game: " + x);
-		}
+		});
+		t.setInitialDelay(0);
+		t.setCoalesce(true);
+		return t;
 	}
 	
 	public Game() {
 		frame = new JFrame("Rows&Cols");
 		display = new JLabel();
+		renderTimer = createRenderTimer();
 		
-		board = new HashMap<>();
-		remainingBricks = new ArrayList<>();
-		bricksPlaced = new ArrayList<>();
+		engine = new Engine();
 		brickPositions = new Rectangle[Player.kBricksPerPlayer];
 		
 		newGame(new String[]{""}, new boolean[]{true});
 		menu = new Menu(this, null);
 		
 		display.setPreferredSize(new Dimension(800, 600));
+		/* The label shows a single icon that draws the current frame whenever Swing repaints it. */
+		display.setIcon(new Icon() {
+			public void paintIcon(Component c, Graphics g, int x, int y) {
+				paint((Graphics2D)g);
+			}
+			public int getIconWidth() {
+				return display.getWidth();
+			}
+			public int getIconHeight() {
+				return display.getHeight();
+			}
+		});
 		
 		frame.add(display);
 		MouseAdapter mouseAdapter = new MouseAdapter() {
 			public void mousePressed(MouseEvent m) {
+				if (aiThinking) {
+					return;
+				}
 				if (menu != null) {
 					menu.handleMousePress(m);
 				} else if (buttonNext != null && buttonNext.contains(m.getPoint())) {
 					nextPlayer();
 				} else if (buttonAI != null && buttonAI.contains(m.getPoint())) {
 					gameNewlyStarted = false;
-					Player.Move move = players[currentPlayer].aiStep(Game.this);
-					if (move instanceof Player.SwapMove) {
-						Player.SwapMove sm = (Player.SwapMove)move;
-						int n = sm.bricks.length;
-						JOptionPane.showMessageDialog(frame,
-								players[currentPlayer].name + " swaps " + n + (n == 1 ? " brick." : " bricks."),
-								players[currentPlayer].name, JOptionPane.INFORMATION_MESSAGE);
-						swappingBricks = new ArrayList<>();
-						for (int i : sm.bricks) {
-							swappingBricks.add(players[currentPlayer].getBricks()[i]);
-							players[currentPlayer].getBricks()[i] = null;
-						}
-					} else {
-						Player.DefaultMove dm = (Player.DefaultMove)move;
-						for (Point p : dm.bricks.keySet()) {
-							bricksPlaced.add(p);
-							board.put(p, players[currentPlayer].getBricks()[dm.bricks.get(p)]);
-							players[currentPlayer].getBricks()[dm.bricks.get(p)] = null;
-						}
-					}
+					startAIStep();
 				} else if (buttonSwap != null && buttonSwap.contains(m.getPoint())) {
 					gameNewlyStarted = false;
-					if (swappingBricks == null) {
-						swappingBricks = new ArrayList<>();
+					if (!engine.isSwapping()) {
+						engine.beginSwap();
 						if (currentBrick != null) {
-							swappingBricks.add(currentBrick);
-							currentBrick = null;
+							engine.swap(returnCurrentBrick());
 						}
 					} else {
-						swappingBricks = null;
+						engine.cancelSwap();
 					}
 				} else if (buttonUndo != null && buttonUndo.contains(m.getPoint())) {
 					gameNewlyStarted = false;
-					if (swappingBricks != null) {
-						for (Brick b : swappingBricks) {
-							for (int i = 0;; ++i) {
-								if (players[currentPlayer].getBricks()[i] == null) {
-									players[currentPlayer].getBricks()[i] = b;
-									break;
-								}
-							}
-						}
-						swappingBricks = null;
-					}
-					for (Point p : bricksPlaced) {
-						Brick b = board.remove(p);
-						for (int i = 0;; ++i) {
-							if (players[currentPlayer].getBricks()[i] == null) {
-								players[currentPlayer].getBricks()[i] = b;
-								break;
-							}
-						}
-					}
-					bricksPlaced.clear();
+					engine.undo();
 				} else {
 					boolean picked = false;
 					for (int i = 0; i < brickPositions.length; ++i) {
 						if (brickPositions[i] != null && brickPositions[i].contains(m.getPoint())) {
-							Brick b = players[currentPlayer].getBricks()[i];
-							if (swappingBricks == null) {
-								players[currentPlayer].getBricks()[i] = currentBrick;
+							final Brick[] rack = engine.getPlayers()[engine.getCurrentPlayer()].getBricks();
+							Brick b = rack[i];
+							if (!engine.isSwapping()) {
+								rack[i] = currentBrick;
 								currentBrick = b;
-							} else if (b != null && swappingBricks.size() < remainingBricks.size()) {
-								swappingBricks.add(b);
-								players[currentPlayer].getBricks()[i] = null;
+							} else {
+								engine.swap(i);
 							}
 							picked = true;
 							gameNewlyStarted = false;
@@ -1054,8 +975,7 @@ public class Game {
 					if (!picked && currentBrick != null) {
 						final Point c = coords(m.getPoint());
 						if (mayPlaceAt(c)) {
-							board.put(c, currentBrick);
-							bricksPlaced.add(c);
+							engine.place(c.x, c.y, currentBrick);
 							currentBrick = null;
 							gameNewlyStarted = false;
 						}
@@ -1069,7 +989,7 @@ public class Game {
 					draw();
 					return;
 				}
-				if (players[currentPlayer].ai) {
+				if (engine.getPlayers()[engine.getCurrentPlayer()].ai) {
 					return;
 				}
 				currentBrickPosition = m.getPoint();
@@ -1082,6 +1002,11 @@ public class Game {
 		display.addMouseMotionListener(mouseAdapter);
 		display.addKeyListener(new KeyAdapter() {
 			public void keyPressed(KeyEvent e) {
+				if (aiThinking) {
+					/* Make the computer player move now with the best move it has found. */
+					if (e.getKeyCode() == KeyEvent.VK_ESCAPE) Player.cancelAiStep();
+					return;
+				}
 				if (menu != null) {
 					menu.handleKey(e);
 				} else {
@@ -1095,6 +1020,9 @@ public class Game {
 								}
 							}
 							break;
+						case KeyEvent.VK_H:
+							showLegalCells = !showLegalCells;
+							break;
 						case KeyEvent.VK_ESCAPE:
 							gameNewlyStarted = false;
 							save();
@@ -1114,8 +1042,7 @@ public class Game {
 		});
 		frame.addWindowListener(new WindowAdapter() {
 			public void windowClosing(WindowEvent e) {
-				save();
-				System.exit(0);
+				quit();
 			}
 		});
 		display.setFocusable(true);
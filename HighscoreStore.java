@@ -0,0 +1,333 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/* Keeps the result of every finished game and answers which are the best ones.
+ *
+ * All entries are appended to a log file that is never rewritten. The best kTopK entries
+ * overall and for each number of players are kept in memory and in a small index file next
+ * to the log, together with the length of the log they cover. Opening the store only reads
+ * the index and the part of the log written after it, so it stays fast however long the
+ * history grows. The best entries of a player are found by reading the whole log once, when
+ * they are first asked for.
+ *
+ * Entries are ranked by their score, the points times the number of players; for equal
+ * scores the older entry ranks higher. Both files use the varints of Savegame. Each entry in
+ * the log is followed by a CRC32 of it, and the log is cut off before the first entry that is
+ * incomplete or corrupt. Logs written before there were checksums are converted when opened. */
+public class HighscoreStore {
+
+	public static final int kTopK = 100;
+	public static final int kMaxPlayers = 6;
+
+	private static final int kLogMagic = 0x52436863;
+	/* The log without checksums. */
+	private static final int kOldLogMagic = 0x52436873;
+	private static final int kIndexMagic = 0x52436869;
+	/* The index is rewritten at the latest when this many bytes of the log are not covered by it. */
+	private static final int kMaxUnindexed = 1 << 16;
+
+	public static class Entry {
+		public final String name;
+		public final long points;
+		public final int nrPlayers;
+		/* Where the entry is in the log, which orders entries by age. */
+		final long offset;
+		public Entry(String n, long p, int i) {
+			this(n, p, i, -1);
+		}
+		Entry(String n, long p, int i, long o) {
+			name = n;
+			points = p;
+			nrPlayers = i;
+			offset = o;
+		}
+		public long score() {
+			return points * nrPlayers;
+		}
+	}
+
+	/* Better entries first. */
+	private static final Comparator<Entry> kRanking = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			if (a.score() != b.score()) return a.score() > b.score() ? -1 : 1;
+			return Long.compare(a.offset, b.offset);
+		}
+	};
+
+	/* A bounded set of the best entries seen so far. The worst one is at the head of the heap. */
+	private static class TopList {
+		private final PriorityQueue<Entry> heap = new PriorityQueue<>(kTopK + 1, Collections.reverseOrder(kRanking));
+		/* Returns whether the entry made it into the list. */
+		boolean offer(Entry e) {
+			if (heap.size() >= kTopK && kRanking.compare(e, heap.peek()) >= 0) {
+				return false;
+			}
+			heap.add(e);
+			if (heap.size() > kTopK) heap.poll();
+			return true;
+		}
+		List<Entry> best(int k) {
+			ArrayList<Entry> list = new ArrayList<>(heap);
+			Collections.sort(list, kRanking);
+			return list.subList(0, Math.min(k, list.size()));
+		}
+	}
+
+	private final Path logFile;
+	private final Path indexFile;
+	/* Index 0 holds the best entries overall, index n those of games with n players. */
+	private final TopList[] top;
+	private long logLength;
+	private long indexedLength;
+	/* The best entries of each player, or null until they are first asked for. */
+	private HashMap<String, TopList> byName;
+
+	/* Opens the store in the given file, creating it if necessary. If there is no store yet but a
+	 * highscore file of earlier versions, its entries are imported. */
+	public static HighscoreStore open(Path file, Path legacy) throws IOException {
+		if (!Files.isRegularFile(file) && legacy != null && Files.isRegularFile(legacy)) {
+			/* Import into a store of its own that is only renamed once complete, so that an import
+			 * that fails is tried again next time. */
+			final Path tmp = file.resolveSibling(file.getFileName() + ".import");
+			final Path tmpIndex = tmp.resolveSibling(tmp.getFileName() + ".index");
+			Files.deleteIfExists(tmp);
+			Files.deleteIfExists(tmpIndex);
+			new HighscoreStore(tmp).importLegacy(legacy);
+			try {
+				Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException x) {
+				Files.move(tmp, file);
+			}
+			Files.deleteIfExists(tmpIndex);
+		}
+		return new HighscoreStore(file);
+	}
+
+	private HighscoreStore(Path file) throws IOException {
+		logFile = file;
+		indexFile = file.resolveSibling(file.getFileName() + ".index");
+		top = new TopList[kMaxPlayers + 1];
+		for (int i = 0; i < top.length; ++i) top[i] = new TopList();
+		if (!Files.isRegularFile(logFile)) {
+			try (FileChannel ch = FileChannel.open(logFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+				ByteBuffer header = ByteBuffer.allocate(4).putInt(kLogMagic);
+				header.flip();
+				while (header.hasRemaining()) ch.write(header);
+			}
+		}
+		convertOldLog();
+		readIndex();
+		logLength = scan(indexedLength, null);
+		if (logLength - indexedLength > kMaxUnindexed) writeIndex();
+	}
+
+	/* The best entries overall. */
+	public List<Entry> top(int k) {
+		return top[0].best(k);
+	}
+	/* The best entries of games with the given number of players. */
+	public List<Entry> top(int nrPlayers, int k) {
+		return nrPlayers > 0 && nrPlayers < top.length ? top[nrPlayers].best(k) : new ArrayList<Entry>();
+	}
+	/* The best entries of the player with the given name. The first call reads the whole log. */
+	public List<Entry> topForName(String name, int k) throws IOException {
+		if (byName == null) {
+			HashMap<String, TopList> map = new HashMap<>();
+			scan(0, map);
+			byName = map;
+		}
+		final TopList l = byName.get(name);
+		return l == null ? new ArrayList<Entry>() : l.best(k);
+	}
+
+	/* Stores the result of a game. Returns its rank among the best entries overall, or -1. */
+	public int add(Entry e) throws IOException {
+		final Telemetry.Highscore event = new Telemetry.Highscore();
+		Savegame.Writer w = new Savegame.Writer();
+		encodeChecked(w, e);
+		w.buf.flip();
+		final Entry stored = new Entry(e.name, e.points, e.nrPlayers, logLength);
+		try (FileChannel ch = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+			ch.position(logLength);
+			while (w.buf.hasRemaining()) ch.write(w.buf);
+			ch.force(false);
+			logLength = ch.position();
+		}
+		final boolean index = offer(stored) || logLength - indexedLength > kMaxUnindexed;
+		if (index) {
+			writeIndex();
+		}
+		final int rank = top[0].best(kTopK).indexOf(stored);
+		event.finish(rank, index);
+		return rank;
+	}
+
+	private boolean offer(Entry e) {
+		boolean changed = top[0].offer(e);
+		if (e.nrPlayers > 0 && e.nrPlayers < top.length) changed |= top[e.nrPlayers].offer(e);
+		if (byName != null) {
+			TopList l = byName.get(e.name);
+			if (l == null) byName.put(e.name, l = new TopList());
+			l.offer(e);
+		}
+		return changed;
+	}
+
+	private static void encode(Savegame.Writer w, Entry e) {
+		final byte[] name = e.name.getBytes(StandardCharsets.UTF_8);
+		w.putVarint(e.points);
+		w.putVarint(e.nrPlayers);
+		w.putVarint(name.length);
+		w.ensure(name.length);
+		w.buf.put(name);
+	}
+	private static Entry decode(ByteBuffer buf, long offset) {
+		final long points = Savegame.getVarint(buf);
+		final int nrPlayers = (int)Savegame.getVarint(buf);
+		final long length = Savegame.getVarint(buf);
+		if (length < 0 || length > buf.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		final byte[] name = new byte[(int)length];
+		buf.get(name);
+		return new Entry(new String(name, StandardCharsets.UTF_8), points, nrPlayers, offset);
+	}
+	/* An entry of the log, followed by its checksum. */
+	private static void encodeChecked(Savegame.Writer w, Entry e) {
+		final int start = w.buf.position();
+		encode(w, e);
+		final CRC32 crc = new CRC32();
+		crc.update(w.buf.array(), start, w.buf.position() - start);
+		w.ensure(4);
+		w.buf.putInt((int)crc.getValue());
+	}
+	/* Reads the entry of the log at the buffer's position, where the buffer starts at the given
+	 * offset of the log. Returns null if the entry is incomplete or fails its checksum. */
+	private static Entry decodeChecked(ByteBuffer buf, long from) {
+		final int start = buf.position();
+		try {
+			final Entry e = decode(buf, from + start);
+			final CRC32 crc = new CRC32();
+			crc.update(buf.array(), buf.arrayOffset() + start, buf.position() - start);
+			return buf.getInt() == (int)crc.getValue() ? e : null;
+		} catch (BufferUnderflowException x) {
+			return null;
+		}
+	}
+
+	/* Reads the log from the given offset, offering all entries to the top lists, or to the
+	 * lists by name if given. Returns where the last intact entry ends; an entry cut off by a
+	 * crash or corrupted, and everything after it, is dropped from the log. */
+	private long scan(long from, HashMap<String, TopList> names) throws IOException {
+		final ByteBuffer buf;
+		try (FileChannel ch = FileChannel.open(logFile, StandardOpenOption.READ)) {
+			if (ch.size() < 4) throw new IOException("Not a highscore file: " + logFile);
+			from = Math.min(Math.max(from, 4), ch.size());
+			buf = ByteBuffer.allocate((int)(ch.size() - from));
+			ch.position(from);
+			while (buf.hasRemaining() && ch.read(buf) >= 0);
+			buf.flip();
+			ch.position(0);
+			ByteBuffer magic = ByteBuffer.allocate(4);
+			while (magic.hasRemaining() && ch.read(magic) >= 0);
+			if (magic.getInt(0) != kLogMagic) throw new IOException("Not a highscore file: " + logFile);
+		}
+		long end = from;
+		while (buf.hasRemaining()) {
+			final Entry e = decodeChecked(buf, from);
+			if (e == null) {
+				if (names == null) {
+					try (FileChannel ch = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+						ch.truncate(end);
+					}
+				}
+				break;
+			}
+			end = from + buf.position();
+			if (names == null) {
+				offer(e);
+			} else {
+				TopList l = names.get(e.name);
+				if (l == null) names.put(e.name, l = new TopList());
+				l.offer(e);
+			}
+		}
+		return end;
+	}
+
+	/* Rewrites a log without checksums into the current format. Its index no longer fits, so it is
+	 * deleted first. */
+	private void convertOldLog() throws IOException {
+		final ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(logFile));
+		if (buf.remaining() < 4 || buf.getInt() != kOldLogMagic) {
+			return;
+		}
+		Savegame.Writer w = new Savegame.Writer();
+		w.buf.putInt(kLogMagic);
+		try {
+			while (buf.hasRemaining()) {
+				encodeChecked(w, decode(buf, 0));
+			}
+		} catch (BufferUnderflowException x) {
+			/* An entry cut off by a crash. */
+		}
+		w.buf.flip();
+		Files.deleteIfExists(indexFile);
+		Savegame.write(w.buf, logFile);
+	}
+
+	private void readIndex() {
+		indexedLength = 0;
+		try {
+			final ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+			if (buf.getInt() != kIndexMagic) return;
+			final long length = buf.getLong();
+			ArrayList<Entry> entries = new ArrayList<>();
+			for (long n = Savegame.getVarint(buf); n > 0; --n) {
+				final long offset = Savegame.getVarint(buf);
+				entries.add(decode(buf, offset));
+			}
+			for (Entry e : entries) offer(e);
+			indexedLength = length;
+		} catch (IOException | RuntimeException x) {
+			/* No usable index; it is rebuilt from the log. */
+			for (int i = 0; i < top.length; ++i) top[i] = new TopList();
+		}
+	}
+	private void writeIndex() throws IOException {
+		/* Every entry in any top list, each once. */
+		TreeSet<Entry> entries = new TreeSet<>(kRanking);
+		for (TopList l : top) entries.addAll(l.heap);
+		Savegame.Writer w = new Savegame.Writer();
+		w.buf.putInt(kIndexMagic);
+		w.buf.putLong(logLength);
+		w.putVarint(entries.size());
+		for (Entry e : entries) {
+			w.putVarint(e.offset);
+			encode(w, e);
+		}
+		w.buf.flip();
+		Savegame.write(w.buf, indexFile);
+		indexedLength = logLength;
+	}
+
+	/* Imports the lines "points,players,name" of the highscore file of earlier versions. */
+	private void importLegacy(Path legacy) throws IOException {
+		for (String line : Files.readAllLines(legacy, StandardCharsets.UTF_8)) {
+			final String[] data = line.split(",", 3);
+			if (data.length < 3) continue;
+			try {
+				final long points = Long.parseLong(data[0]);
+				final int nrPlayers = Integer.parseInt(data[1]);
+				if (nrPlayers > 0) add(new Entry(data[2], points, nrPlayers));
+			} catch (NumberFormatException x) {
+			}
+		}
+	}
+}
@@ -0,0 +1,280 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Chooses moves by information set Monte Carlo tree search, an alternative to Search.
+ *
+ * Every iteration deals the bricks the player cannot see – the bag and the other players' racks –
+ * at random (see Engine.determinize()), and then walks down a tree of moves. Of the moves that are
+ * possible with this deal, one that is not in the tree yet is added, or else the child with the
+ * best UCB1 value is followed, counting how often each move was available instead of how often
+ * its parent was visited. From the new node the game is played on for up to kPlayoutTurns turns
+ * by players who pick one of their kPlayoutWidth best-scoring moves at random. Every node on the
+ * path is credited with how far the player who made its move ended up ahead of the best other
+ * player, squashed to a value between 0 and 1.
+ *
+ * Each thread grows a tree of its own with its own random numbers. When the time or number of
+ * playouts is used up, the visits of the root moves of all trees are added up and the most visited
+ * move is chosen.
+ *
+ * Once the bag is empty in a game of two players, nothing is hidden any more, and Endgame tries
+ * to solve the rest of the game exactly in half of the time before the playouts begin. */
+public class MonteCarlo {
+
+	/* Playouts per move if there is no time limit, see shared(). */
+	public static final int kDefaultPlayouts = Integer.getInteger("rowsandcols.playouts", 20000);
+	/* How many turns a playout lasts at most. */
+	public static final int kPlayoutTurns = 8;
+	/* Players in a playout choose from this many of their best moves. */
+	public static final int kPlayoutWidth = 3;
+	/* A lead of this many points is worth a reward of about 0.73. */
+	private static final double kRewardScale = 10;
+	private static final double kExploration = 0.7;
+
+	private static class Node {
+		/* The key of the move leading here (see Player.DefaultMove), or 0 for swapping or passing. */
+		final long key;
+		/* The player who made that move. */
+		final int player;
+		final HashMap<Long, Node> children = new HashMap<>();
+		int visits;
+		int available;
+		double reward;
+
+		Node(long k, int p) {
+			key = k;
+			player = p;
+		}
+	}
+
+	private static MonteCarlo shared;
+	/* The search used by computer players when rowsandcols.ai is mcts. It uses the threads and
+	 * time limit of Search.shared(), or kDefaultPlayouts playouts if there is no time limit. */
+	public static synchronized MonteCarlo shared() {
+		if (shared == null) {
+			shared = new MonteCarlo(Search.kDefaultThreads, Search.kDefaultMoveTime,
+					Search.kDefaultMoveTime > 0 ? 0 : kDefaultPlayouts);
+		}
+		return shared;
+	}
+
+	private final ForkJoinPool pool;
+	private final int threads;
+	private final long moveTime;
+	private final long playouts;
+	private final TranspositionTable table;
+	private final Endgame endgame;
+	/* The nodes of all results returned so far. */
+	private long nodes;
+	private volatile boolean cancelled;
+
+	/* A search that stops after the given number of milliseconds or playouts, whichever comes first.
+	 * 0 means no limit, but one of them must be given. With a single thread and no time limit, the
+	 * moves chosen only depend on the engine's random generator. */
+	public MonteCarlo(int t, long millis, long n) {
+		if (millis <= 0 && n <= 0) {
+			throw new IllegalArgumentException("A Monte Carlo search needs a time limit or a number of playouts");
+		}
+		threads = t;
+		pool = new ForkJoinPool(t);
+		moveTime = millis;
+		playouts = n;
+		/* Enough for the positions of one Endgame.solve(). */
+		table = new TranspositionTable(16);
+		endgame = new Endgame(table);
+	}
+
+	/* Makes the running search, if any, return the best move it found so far. Can be called from any thread. */
+	public void cancel() {
+		cancelled = true;
+		endgame.cancel();
+	}
+
+	/* Forgets the positions solved in earlier searches, so that the next search does not depend on them. */
+	public void clear() {
+		table.clear();
+	}
+
+	/* Returns the best move for the current player, or a result without a move if the player cannot
+	 * place any bricks. The result's value is the mean reward of the move in thousandths, its nodes
+	 * are the playouts and its depth the deepest path in any tree, unless the game was solved. The legality checks made are
+	 * added to the engine's count. */
+	public Search.Result search(Engine engine) {
+		final Search.Result r = run(engine);
+		nodes += r.nodes;
+		return r;
+	}
+	/* The number of playouts, or nodes of solved endgames, of all searches made with this search so far. */
+	public long nodesSearched() {
+		return nodes;
+	}
+	private Search.Result run(Engine engine) {
+		cancelled = false;
+		final long deadline = moveTime > 0 ? Math.max(1, System.nanoTime() + moveTime * 1000000) : 0;
+		final Search.Result solved = endgame.solve(engine, moveTime > 0 ? Math.max(1, moveTime / 2) : 0);
+		if (solved != null) {
+			return solved;
+		}
+		final Engine root = new Engine(engine);
+		final ArrayList<Player.DefaultMove> moves = new MoveGenerator(root).generate(
+				root.getPlayers()[root.getCurrentPlayer()].getBricks());
+		long checks = root.legalityChecks();
+		if (moves.size() <= 1) {
+			engine.countLegalityChecks(checks);
+			return new Search.Result(moves.isEmpty() ? null : moves.get(0), 0, 1, checks, 0);
+		}
+		final ArrayList<Worker> workers = new ArrayList<>();
+		for (int t = 0; t < threads; ++t) {
+			workers.add(new Worker(root, engine.seed(), deadline, playouts > 0 ? (playouts + t) / threads : 0));
+		}
+		pool.invoke(new RecursiveAction() {
+			protected void compute() {
+				invokeAll(workers);
+			}
+		});
+
+		long nodes = 0;
+		int depth = 0;
+		for (Worker w : workers) {
+			nodes += w.iterations;
+			checks += w.checks;
+			depth = Math.max(depth, w.depth);
+		}
+		Player.DefaultMove best = moves.get(0);
+		long bestVisits = -1;
+		double bestReward = 0;
+		for (Player.DefaultMove m : moves) {
+			long visits = 0;
+			double reward = 0;
+			for (Worker w : workers) {
+				final Node n = w.tree.children.get(m.key);
+				if (n != null) {
+					visits += n.visits;
+					reward += n.reward;
+				}
+			}
+			if (visits > bestVisits || (visits == bestVisits && reward > bestReward)) {
+				best = m;
+				bestVisits = visits;
+				bestReward = reward;
+			}
+		}
+		engine.countLegalityChecks(checks);
+		return new Search.Result(best, bestVisits > 0 ? (int)Math.round(1000 * bestReward / bestVisits) : 0,
+				nodes, checks, depth);
+	}
+
+	/* One thread's tree and what it counted. */
+	private class Worker extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Engine root;
+		private final long seed;
+		private final long deadline;
+		private final long limit;
+		private final Node tree;
+		private long iterations;
+		private long checks;
+		private int depth;
+
+		Worker(Engine r, long s, long d, long n) {
+			root = r;
+			seed = s;
+			deadline = d;
+			limit = n;
+			tree = new Node(0, -1);
+		}
+
+		protected void compute() {
+			final SplittableRandom random = new SplittableRandom(seed);
+			while ((limit <= 0 || iterations < limit) && !cancelled &&
+					(deadline == 0 || System.nanoTime() - deadline < 0)) {
+				iterate(random);
+				++iterations;
+			}
+		}
+
+		private void iterate(SplittableRandom random) {
+			final Engine e = new Engine(root, random);
+			e.determinize();
+			final MoveGenerator gen = new MoveGenerator(e);
+			final ArrayList<Node> path = new ArrayList<>();
+			Node node = tree;
+			boolean over = false;
+			boolean expanded = false;
+			while (!over && !expanded) {
+				final int player = e.getCurrentPlayer();
+				final ArrayList<Player.DefaultMove> moves = gen.generate(e.getPlayers()[player].getBricks());
+				/* Without moves, the only choice is to swap or pass, which is a null move. */
+				Player.DefaultMove chosen = null;
+				Node next = null;
+				double bestValue = Double.NEGATIVE_INFINITY;
+				for (int i = 0; i < Math.max(1, moves.size()); ++i) {
+					final Player.DefaultMove m = moves.isEmpty() ? null : moves.get(i);
+					final Node child = node.children.get(m == null ? 0 : m.key);
+					if (child == null) {
+						/* The moves are sorted by points, so the best untried move is added first. */
+						if (!expanded) {
+							expanded = true;
+							chosen = m;
+						}
+						continue;
+					}
+					++child.available;
+					if (!expanded) {
+						final double v = child.reward / child.visits +
+								kExploration * Math.sqrt(Math.log(child.available) / child.visits);
+						if (v > bestValue) {
+							bestValue = v;
+							next = child;
+							chosen = m;
+						}
+					}
+				}
+				if (expanded) {
+					next = new Node(chosen == null ? 0 : chosen.key, player);
+					node.children.put(next.key, next);
+				}
+				over = play(e, chosen);
+				path.add(next);
+				node = next;
+			}
+			depth = Math.max(depth, path.size());
+
+			for (int t = 0; t < kPlayoutTurns && !over; ++t) {
+				final ArrayList<Player.DefaultMove> moves = gen.generate(e.getPlayers()[e.getCurrentPlayer()].getBricks());
+				over = play(e, moves.isEmpty() ? null : moves.get(random.nextInt(Math.min(kPlayoutWidth, moves.size()))));
+			}
+
+			final Player[] players = e.getPlayers();
+			final double[] reward = new double[players.length];
+			for (int p = 0; p < players.length; ++p) {
+				long others = 0;
+				for (int q = 0; q < players.length; ++q) {
+					if (q != p) others = Math.max(others, players[q].getPoints());
+				}
+				reward[p] = 1 / (1 + Math.exp((others - players[p].getPoints()) / kRewardScale));
+			}
+			for (Node n : path) {
+				++n.visits;
+				n.reward += reward[n.player];
+			}
+			checks += e.legalityChecks();
+		}
+	}
+
+	/* Makes the move and ends the turn. A null move swaps as many bricks as possible, or passes if
+	 * the bag is empty. Returns whether the game is over. */
+	private static boolean play(Engine e, Player.DefaultMove m) {
+		if (m != null) {
+			for (int i = 0; i < m.cells.length; ++i) {
+				e.place(Board.cellX(m.cells[i]), Board.cellY(m.cells[i]), m.bricks[i]);
+			}
+		} else if (e.bagSize() > 0) {
+			e.beginSwap();
+			final Brick[] rack = e.getPlayers()[e.getCurrentPlayer()].getBricks();
+			for (int i = 0; i < rack.length && e.swapCount() < e.bagSize(); ++i) {
+				if (rack[i] != null) e.swap(i);
+			}
+		}
+		return e.endTurn();
+	}
+}
@@ -0,0 +1,166 @@
+import java.util.*;
+
+/* Enumerates all distinct legal moves a player can make with the given rack.
+ *
+ * Starting from every empty cell next to the board, bricks are placed one by one at the
+ * ends of the line formed by the bricks placed so far. Only bricks that form a group with those
+ * placed before are tried (see RackGroups), and of identical bricks only the first one. Every
+ * start cell first grows towards one end and then towards the other one, so each set of cells is
+ * reached only once per start cell; moves that are still reached several times from different
+ * start cells are filtered out by the Zobrist hash of the resulting board. */
+public class MoveGenerator {
+
+	private final Engine engine;
+	private final Board board;
+	private Brick[] rack;
+	private final int[] cells;
+	private final int[] indices;
+	private int depth;
+	private int[] anchors;
+	/* The groups of the rack (see RackGroups) and the slots of the bricks placed so far. */
+	private long groups;
+	private int used;
+	private final ArrayList<Player.DefaultMove> moves;
+	private long rootHash;
+	private long[] seen;
+	private int nrSeen;
+
+	public MoveGenerator(Engine e) {
+		engine = e;
+		board = e.getBoard();
+		cells = new int[Player.kBricksPerPlayer];
+		indices = new int[Player.kBricksPerPlayer];
+		anchors = new int[64];
+		moves = new ArrayList<>();
+		seen = new long[256];
+	}
+
+	/* Returns all moves, the best ones first. The engine must be at the start of a turn. */
+	public ArrayList<Player.DefaultMove> generate(Brick[] r) {
+		assert(engine.placedCount() == 0);
+		rack = r;
+		depth = 0;
+		moves.clear();
+		Arrays.fill(seen, 0);
+		nrSeen = 0;
+		rootHash = board.hash();
+
+		groups = RackGroups.of(rack);
+		used = 0;
+		final long rackCodes = candidateCodes();
+
+		/* The frontier changes while we place bricks, so iterate over a copy of it. */
+		final int nrAnchors = board.frontierSize();
+		if (anchors.length < nrAnchors) anchors = new int[nrAnchors * 2];
+		for (int a = 0; a < nrAnchors; ++a) anchors[a] = board.frontierAt(a);
+		for (int a = 0; a < nrAnchors; ++a) {
+			final int x = Board.cellX(anchors[a]);
+			final int y = Board.cellY(anchors[a]);
+			if ((board.legalCodes(x, y) & rackCodes) == 0) {
+				continue;
+			}
+			for (int i = 0; i < rack.length; ++i) {
+				if (isCandidate(i) && engine.mayPlaceAt(rack[i], x, y)) {
+					push(x, y, i);
+					for (int axis = 0; axis < 2; ++axis) {
+						extend(x, y, axis, 1);
+						extend(x, y, axis, -1);
+					}
+					pop();
+				}
+			}
+		}
+
+		Collections.sort(moves, new Comparator<Player.DefaultMove>() {
+			public int compare(Player.DefaultMove a, Player.DefaultMove b) {
+				if (a.points != b.points) return b.points - a.points;
+				return a.cells.length - b.cells.length;
+			}
+		});
+		return new ArrayList<>(moves);
+	}
+
+	/* Whether the rack brick with the given index can be placed along with those placed so far.
+	 * Of identical bricks, only the first one is ever placed. */
+	private boolean isCandidate(int index) {
+		return RackGroups.canAdd(groups, used, index);
+	}
+	/* The codes of the bricks that are candidates. */
+	private long candidateCodes() {
+		long codes = 0;
+		for (int i = 0; i < rack.length; ++i) {
+			if (isCandidate(i)) codes |= 1L << rack[i].code();
+		}
+		return codes;
+	}
+
+	/* Places further bricks behind the end of the line through (x, y) in direction dir.
+	 * Growing in the positive direction may be followed by growing in the negative one, but not vice versa. */
+	private void extend(int x, int y, int axis, int dir) {
+		final int dx = axis == Board.kHorizontal ? dir : 0;
+		final int dy = axis == Board.kVertical ? dir : 0;
+		int ex = x;
+		int ey = y;
+		while (!board.isEmpty(ex, ey)) {
+			ex += dx;
+			ey += dy;
+		}
+		if ((board.legalCodes(ex, ey) & candidateCodes()) == 0) {
+			return;
+		}
+		for (int i = 0; i < rack.length; ++i) {
+			if (isCandidate(i) && engine.mayPlaceAt(rack[i], ex, ey)) {
+				push(ex, ey, i);
+				if (dir > 0) {
+					extend(x, y, axis, 1);
+				}
+				extend(x, y, axis, -1);
+				pop();
+			}
+		}
+	}
+
+	private void push(int x, int y, int index) {
+		engine.place(x, y, rack[index]);
+		cells[depth] = Board.cell(x, y);
+		indices[depth] = index;
+		used |= 1 << index;
+		++depth;
+		record();
+	}
+	private void pop() {
+		engine.unplace();
+		--depth;
+		used &= ~(1 << indices[depth]);
+	}
+
+	private void record() {
+		final long key = board.hash() ^ rootHash;
+		if (!addSeen(key == 0 ? 1 : key)) {
+			return;
+		}
+		moves.add(new Player.DefaultMove(Arrays.copyOf(cells, depth), Arrays.copyOf(indices, depth),
+				engine.scoreTurn(), key));
+	}
+
+	/* Inserts into an open-addressing hash set. Returns false if the hash was already present. */
+	private boolean addSeen(long hash) {
+		if (2 * (nrSeen + 1) > seen.length) {
+			long[] old = seen;
+			seen = new long[old.length * 2];
+			nrSeen = 0;
+			for (long h : old) {
+				if (h != 0) addSeen(h);
+			}
+		}
+		final int mask = seen.length - 1;
+		for (int i = (int)hash & mask;; i = (i + 1) & mask) {
+			if (seen[i] == hash) return false;
+			if (seen[i] == 0) {
+				seen[i] = hash;
+				++nrSeen;
+				return true;
+			}
+		}
+	}
+}
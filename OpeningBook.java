@@ -0,0 +1,420 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/* Answers the first turns of a game from a table of moves that a deep search found beforehand.
+ *
+ * Positions are looked up by a key that is the same for all positions that only differ by
+ * rotating or mirroring the board, moving it, or renaming colours or shapes. To compute it, the
+ * board is turned in each of the eight ways and moved to the origin, its bricks are listed row by
+ * row, and colours and shapes are numbered in the order they first appear. The rack's colours and
+ * shapes that are not on the board are then numbered so that the sorted rack comes out smallest.
+ * The way that gives the smallest listing is used; the key is a hash of it and the number of
+ * players. Moves are stored in the same numbering and turned back when they are looked up.
+ *
+ * The file starts with the magic bytes "RCob", a version byte and the number of entries, followed
+ * by the entries sorted by key. Each entry holds the key and the move as the number of bricks
+ * placed and the position and brick of each. The file is memory-mapped and searched by bisection,
+ * so opening it takes no time and a lookup a few microseconds. Running this class generates the
+ * book from games of computer players against each other, see main(). */
+public class OpeningBook {
+
+	public static final String kDefaultFile = System.getProperty("rowsandcols.book", "openings.book");
+	/* Positions with more bricks on the board are not looked up. */
+	public static final int kMaxBoard = 24;
+
+	private static final int kMagic = 0x52436f62;
+	private static final int kVersion = 1;
+	private static final int kHeaderSize = 9;
+	private static final int kMoveSize = 1 + 3 * Player.kBricksPerPlayer;
+	private static final int kEntrySize = 8 + kMoveSize;
+	/* How many ways of numbering the rack are tried at most before settling for the best one so far.
+	 * A rack that needs more is numbered differently than the same rack elsewhere and is not found. */
+	private static final int kMaxNumberings = 256;
+
+	/* One way of turning the board and numbering colours and shapes. */
+	private static class Form {
+		final int transform;
+		int minX;
+		int minY;
+		/* The number of each colour and shape, or -1. */
+		int[] colors = new int[Brick.kColors];
+		int[] shapes = new int[Brick.kShapes];
+		int nextColor;
+		int nextShape;
+		/* The bricks on the board, row by row, each as its position and numbered code. */
+		int[] board;
+		/* The numbered codes of the rack, sorted and packed into six bits each. */
+		long rack;
+		long key;
+
+		Form(int t) {
+			transform = t;
+			Arrays.fill(colors, -1);
+			Arrays.fill(shapes, -1);
+		}
+		int color(int c) {
+			if (colors[c] < 0) colors[c] = nextColor++;
+			return colors[c];
+		}
+		int shape(int s) {
+			if (shapes[s] < 0) shapes[s] = nextShape++;
+			return shapes[s];
+		}
+		int code(Brick b) {
+			return colors[b.color] * Brick.kShapes + shapes[b.shape];
+		}
+		Brick brick(int code) {
+			int c = 0;
+			int s = 0;
+			while (c < Brick.kColors && colors[c] != code / Brick.kShapes) ++c;
+			while (s < Brick.kShapes && shapes[s] != code % Brick.kShapes) ++s;
+			return c < Brick.kColors && s < Brick.kShapes ? Brick.of(c, s) : null;
+		}
+		int turnX(int x, int y) {
+			final int u = (transform & 4) != 0 ? y : x;
+			return ((transform & 1) != 0 ? -u : u) - minX;
+		}
+		int turnY(int x, int y) {
+			final int v = (transform & 4) != 0 ? x : y;
+			return ((transform & 2) != 0 ? -v : v) - minY;
+		}
+		/* The cell (see Board.cell()) that turnX() and turnY() map to the given position. */
+		int cell(int x, int y) {
+			final int u = (transform & 1) != 0 ? -(x + minX) : x + minX;
+			final int v = (transform & 2) != 0 ? -(y + minY) : y + minY;
+			return (transform & 4) != 0 ? Board.cell(v, u) : Board.cell(u, v);
+		}
+	}
+
+	private final ByteBuffer entries;
+	private final int count;
+
+	private OpeningBook(ByteBuffer buf) throws IOException {
+		if (buf.remaining() < kHeaderSize || buf.getInt(0) != kMagic || buf.get(4) != kVersion) {
+			throw new IOException("Not an opening book");
+		}
+		count = buf.getInt(5);
+		if (count < 0 || buf.remaining() != kHeaderSize + (long)count * kEntrySize) {
+			throw new IOException("Opening book is corrupt");
+		}
+		entries = buf;
+	}
+
+	public static OpeningBook open(Path file) throws IOException {
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			return new OpeningBook(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+		}
+	}
+
+	private static OpeningBook shared;
+	private static boolean sharedOpened;
+	/* The book in the file given by the property rowsandcols.book, or null if there is none. */
+	public static synchronized OpeningBook shared() {
+		if (!sharedOpened) {
+			sharedOpened = true;
+			final Path file = Paths.get(kDefaultFile);
+			if (Files.isRegularFile(file)) {
+				try {
+					shared = open(file);
+				} catch (IOException x) {
+					System.out.println("ERROR: Could not open opening book: " + x);
+				}
+			}
+		}
+		return shared;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/* Returns the book's move for the current player, or null if the position is not in the book. */
+	public Player.DefaultMove lookup(Engine e) {
+		final Form f = canonical(e);
+		if (f == null) {
+			return null;
+		}
+		int lo = 0;
+		int hi = count - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			final int offset = kHeaderSize + mid * kEntrySize;
+			final long k = entries.getLong(offset);
+			if (k < f.key) {
+				lo = mid + 1;
+			} else if (k > f.key) {
+				hi = mid - 1;
+			} else {
+				return decode(e, f, entries, offset + 8);
+			}
+		}
+		return null;
+	}
+
+	/* The key and numbering of the position, or null if it is not one the book is meant for. */
+	private static Form canonical(Engine e) {
+		final Board board = e.getBoard();
+		final Brick[] rack = e.getPlayers()[e.getCurrentPlayer()].getBricks();
+		if (e.isGameOver() || e.placedCount() > 0 || e.isSwapping() || board.size() > kMaxBoard) {
+			return null;
+		}
+		for (Brick b : rack) {
+			if (b == null) return null;
+		}
+		final int n = board.size();
+		final long[] order = new long[n];
+		Form best = null;
+		for (int t = 0; t < 8; ++t) {
+			final Form f = new Form(t);
+			int minX = Integer.MAX_VALUE;
+			int minY = Integer.MAX_VALUE;
+			for (int i = 0; i < n; ++i) {
+				final int c = board.cellAt(i);
+				minX = Math.min(minX, f.turnX(Board.cellX(c), Board.cellY(c)));
+				minY = Math.min(minY, f.turnY(Board.cellX(c), Board.cellY(c)));
+			}
+			f.minX = minX;
+			f.minY = minY;
+			for (int i = 0; i < n; ++i) {
+				final int c = board.cellAt(i);
+				order[i] = (long)f.turnY(Board.cellX(c), Board.cellY(c)) << 40 |
+						(long)f.turnX(Board.cellX(c), Board.cellY(c)) << 20 | i;
+			}
+			Arrays.sort(order);
+			f.board = new int[n];
+			for (int i = 0; i < n; ++i) {
+				final int c = board.cellAt((int)(order[i] & 0xfffff));
+				final Brick b = board.brickAt(Board.cellX(c), Board.cellY(c));
+				f.board[i] = (int)(order[i] >>> 20 & 0xff) << 20 | (int)(order[i] >>> 40) << 12 |
+						f.color(b.color) * Brick.kShapes + f.shape(b.shape);
+			}
+			final int cmp = best == null ? -1 : compare(f.board, best.board);
+			if (cmp > 0) continue;
+			numberRack(f, rack);
+			if (cmp < 0 || f.rack < best.rack) best = f;
+		}
+		long h = Board.mix(0x0b00c + e.getPlayers().length);
+		for (int v : best.board) h = Board.mix(h + v);
+		best.key = Board.mix(h + best.rack);
+		return best;
+	}
+	private static int compare(int[] a, int[] b) {
+		for (int i = 0; i < a.length; ++i) {
+			if (a[i] != b[i]) return Integer.compare(a[i], b[i]);
+		}
+		return 0;
+	}
+
+	/* Numbers the rack's colours and shapes that are not on the board so that the sorted rack is
+	 * smallest. The rack is built up from its smallest brick on, trying each brick that can come
+	 * next with the smallest possible code. */
+	private static void numberRack(Form f, Brick[] rack) {
+		final Form best = new Form(f.transform);
+		best.rack = Long.MAX_VALUE;
+		numberRack(f, rack, new boolean[rack.length], 0, 0, best, new int[] { kMaxNumberings });
+		f.colors = best.colors;
+		f.shapes = best.shapes;
+		f.nextColor = best.nextColor;
+		f.nextShape = best.nextShape;
+		f.rack = best.rack;
+	}
+	private static void numberRack(Form f, Brick[] rack, boolean[] used, int n, long packed, Form best, int[] budget) {
+		if (n == rack.length) {
+			--budget[0];
+			if (packed < best.rack) {
+				best.rack = packed;
+				best.colors = f.colors.clone();
+				best.shapes = f.shapes.clone();
+				best.nextColor = f.nextColor;
+				best.nextShape = f.nextShape;
+			}
+			return;
+		}
+		/* Nothing that starts out larger than the best so far can become smaller. */
+		if (best.rack != Long.MAX_VALUE && packed > best.rack >>> 6 * (rack.length - n)) {
+			return;
+		}
+		int min = Integer.MAX_VALUE;
+		for (int i = 0; i < rack.length; ++i) {
+			if (!used[i]) min = Math.min(min, smallestCode(f, rack[i]));
+		}
+		for (int i = 0; i < rack.length && budget[0] > 0; ++i) {
+			if (used[i] || smallestCode(f, rack[i]) != min || isRepeated(rack, used, i)) continue;
+			final boolean newColor = f.colors[rack[i].color] < 0;
+			final boolean newShape = f.shapes[rack[i].shape] < 0;
+			f.color(rack[i].color);
+			f.shape(rack[i].shape);
+			used[i] = true;
+			numberRack(f, rack, used, n + 1, packed << 6 | min, best, budget);
+			used[i] = false;
+			if (newColor) {
+				f.colors[rack[i].color] = -1;
+				--f.nextColor;
+			}
+			if (newShape) {
+				f.shapes[rack[i].shape] = -1;
+				--f.nextShape;
+			}
+		}
+	}
+	private static int smallestCode(Form f, Brick b) {
+		final int c = f.colors[b.color] < 0 ? f.nextColor : f.colors[b.color];
+		final int s = f.shapes[b.shape] < 0 ? f.nextShape : f.shapes[b.shape];
+		return c * Brick.kShapes + s;
+	}
+	/* Whether an unused brick before the given one is the same. */
+	private static boolean isRepeated(Brick[] rack, boolean[] used, int index) {
+		for (int i = 0; i < index; ++i) {
+			if (!used[i] && rack[i] == rack[index]) return true;
+		}
+		return false;
+	}
+
+	/* Writes the move as numbered in the form. */
+	private static void encode(Form f, Brick[] rack, Player.DefaultMove m, ByteBuffer buf) {
+		buf.put((byte)m.cells.length);
+		for (int i = 0; i < Player.kBricksPerPlayer; ++i) {
+			if (i < m.cells.length) {
+				final int x = Board.cellX(m.cells[i]);
+				final int y = Board.cellY(m.cells[i]);
+				buf.put((byte)f.turnX(x, y)).put((byte)f.turnY(x, y)).put((byte)f.code(rack[m.bricks[i]]));
+			} else {
+				buf.put((byte)0).put((byte)0).put((byte)0);
+			}
+		}
+	}
+	/* Turns a stored move back and plays it on a copy of the engine to check that it is legal and
+	 * to score it. Returns null if it is not legal. */
+	private static Player.DefaultMove decode(Engine e, Form f, ByteBuffer buf, int offset) {
+		final int n = buf.get(offset);
+		if (n <= 0 || n > Player.kBricksPerPlayer) {
+			return null;
+		}
+		final Engine copy = new Engine(e);
+		final Brick[] rack = copy.getPlayers()[copy.getCurrentPlayer()].getBricks();
+		final long rootHash = copy.getBoard().hash();
+		final int[] cells = new int[n];
+		final int[] indices = new int[n];
+		for (int i = 0; i < n; ++i) {
+			cells[i] = f.cell(buf.get(offset + 1 + 3 * i), buf.get(offset + 2 + 3 * i));
+			final Brick b = f.brick(buf.get(offset + 3 + 3 * i));
+			int index = 0;
+			while (index < rack.length && (b == null || rack[index] != b)) ++index;
+			if (index == rack.length || !copy.mayPlaceAt(b, Board.cellX(cells[i]), Board.cellY(cells[i]))) {
+				return null;
+			}
+			copy.place(Board.cellX(cells[i]), Board.cellY(cells[i]), index);
+			indices[i] = index;
+		}
+		e.countLegalityChecks(copy.legalityChecks());
+		final long key = copy.getBoard().hash() ^ rootHash;
+		return new Player.DefaultMove(cells, indices, copy.scoreTurn(), key == 0 ? 1 : key);
+	}
+
+	/* Generates a book, or adds to an existing one:
+	 *
+	 *   java OpeningBook [--games N] [--turns T] [--players 2-6] [--depth D] [--movetime MS]
+	 *                    [--threads T] [--seed S] [--out FILE]
+	 *
+	 * Computer players play N games against each other. In the first T turns of each game, every
+	 * position that is not in the book yet is searched D turns deep for at most MS milliseconds
+	 * with Search, and the move found is added. */
+	public static void main(String[] args) throws IOException {
+		int games = 1000;
+		int turns = 2;
+		int nrPlayers = 2;
+		int depth = 6;
+		long moveTime = 5000;
+		int threads = Search.kDefaultThreads;
+		long seed = System.nanoTime();
+		Path out = Paths.get(kDefaultFile);
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+				case "--games": games = Integer.parseInt(args[i + 1]); break;
+				case "--turns": turns = Integer.parseInt(args[i + 1]); break;
+				case "--players": nrPlayers = Integer.parseInt(args[i + 1]); break;
+				case "--depth": depth = Integer.parseInt(args[i + 1]); break;
+				case "--movetime": moveTime = Long.parseLong(args[i + 1]); break;
+				case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+				case "--seed": seed = Long.parseLong(args[i + 1]); break;
+				case "--out": out = Paths.get(args[i + 1]); break;
+				default: usage();
+			}
+		}
+		if (args.length % 2 != 0 || games <= 0 || turns <= 0 || nrPlayers < 2 || nrPlayers > 6 || depth <= 0 ||
+				moveTime < 0 || threads <= 0) {
+			usage();
+		}
+
+		final TreeMap<Long, byte[]> book = new TreeMap<>();
+		if (Files.isRegularFile(out)) {
+			final OpeningBook old = open(out);
+			for (int i = 0; i < old.count; ++i) {
+				final byte[] move = new byte[kMoveSize];
+				final int offset = kHeaderSize + i * kEntrySize;
+				for (int j = 0; j < kMoveSize; ++j) move[j] = old.entries.get(offset + 8 + j);
+				book.put(old.entries.getLong(offset), move);
+			}
+		}
+		final int known = book.size();
+		final Search search = new Search(threads, Search.kDefaultWidth, moveTime);
+		String[] names = new String[nrPlayers];
+		boolean[] ai = new boolean[nrPlayers];
+		for (int p = 0; p < nrPlayers; ++p) {
+			names[p] = "AI " + (p + 1);
+			ai[p] = true;
+		}
+		long hits = 0;
+		for (int g = 0; g < games; ++g) {
+			final Engine e = new Engine();
+			e.newGame(names, ai, new SplittableRandom(Board.mix(seed + g)));
+			for (int t = 0; t < turns && !e.isGameOver(); ++t) {
+				final Player player = e.getPlayers()[e.getCurrentPlayer()];
+				final Form f = canonical(e);
+				Player.Move m = null;
+				if (f != null && book.containsKey(f.key)) {
+					m = decode(e, f, ByteBuffer.wrap(book.get(f.key)), 0);
+					++hits;
+				}
+				if (m == null) {
+					m = player.aiStep(e, search, depth);
+					if (f != null && m instanceof Player.DefaultMove) {
+						final ByteBuffer move = ByteBuffer.allocate(kMoveSize);
+						encode(f, player.getBricks(), (Player.DefaultMove)m, move);
+						book.put(f.key, move.array());
+					}
+				}
+				if (m instanceof Player.DefaultMove) {
+					final Player.DefaultMove d = (Player.DefaultMove)m;
+					for (int i = 0; i < d.cells.length; ++i) {
+						e.place(Board.cellX(d.cells[i]), Board.cellY(d.cells[i]), d.bricks[i]);
+					}
+				} else {
+					e.beginSwap();
+					for (int i : ((Player.SwapMove)m).bricks) e.swap(i);
+				}
+				e.endTurn();
+			}
+			if ((g + 1) % 100 == 0 || g + 1 == games) {
+				System.err.printf("%d games: %d positions, %d new, %d found in the book%n", g + 1, book.size(),
+						book.size() - known, hits);
+			}
+		}
+
+		final ByteBuffer buf = ByteBuffer.allocate(kHeaderSize + book.size() * kEntrySize);
+		buf.putInt(kMagic).put((byte)kVersion).putInt(book.size());
+		for (Map.Entry<Long, byte[]> entry : book.entrySet()) {
+			buf.putLong(entry.getKey()).put(entry.getValue());
+		}
+		buf.flip();
+		Savegame.write(buf, out);
+	}
+	private static void usage() {
+		System.err.println("Usage: java OpeningBook [--games N] [--turns T] [--players 2-6] [--depth D] [--movetime MS] " +
+				"[--threads T] [--seed S] [--out FILE]");
+		System.exit(1);
+	}
+}
@@ -1,4 +1,3 @@
-import java.awt.Point;
 import java.util.*;
 
 public class Player {
@@ -15,6 +14,12 @@ public class Player {
 		points = 0;
 		bricks = new Brick[kBricksPerPlayer];
 	}
+	public Player(Player p) {
+		name = p.name;
+		ai = p.ai;
+		points = p.points;
+		bricks = p.bricks.clone();
+	}
 	public Brick[] getBricks() {
 		return bricks;
 	}
@@ -25,96 +30,99 @@ public class Player {
 		points += delta;
 	}
 	
-	public abstract class Move {
+	public static abstract class Move {
 	}
-	public class SwapMove extends Move {
+	public static class SwapMove extends Move {
 		public final int[] bricks;
 		public SwapMove(int ... indices) {
 			bricks = indices;
 		}
 	}
-	public class DefaultMove extends Move {
-		public final Map<Point, Integer> bricks;
-		public DefaultMove(Map<Point, Integer> b) {
+	/* Places the rack bricks with the given indices on the given cells (see Board.cell()).
+	 * The key is the XOR of the Zobrist keys of the placed bricks, so moves placing the same
+	 * bricks on the same cells have the same key. */
+	public static class DefaultMove extends Move {
+		public final int[] cells;
+		public final int[] bricks;
+		public final int points;
+		public final long key;
+		public DefaultMove(int[] c, int[] b, int p, long k) {
+			cells = c;
 			bricks = b;
+			points = p;
+			key = k;
+		}
+	}
+	/* Which search the computer players use: "search" for Search, or "mcts" for MonteCarlo. */
+	public static final String kStrategy = System.getProperty("rowsandcols.ai", "search");
+	
+	public Move aiStep(Engine engine) {
+		final Move m = bookStep(engine, OpeningBook.shared());
+		if (m != null) {
+			return m;
+		}
+		return kStrategy.equals("mcts") ? aiStep(engine, MonteCarlo.shared()) : aiStep(engine, Search.shared());
+	}
+	/* Returns the move the opening book has for the position, or null if there is none. */
+	public Move bookStep(Engine engine, OpeningBook book) {
+		if (book == null) {
+			return null;
+		}
+		final Telemetry.AiStep event = new Telemetry.AiStep();
+		final DefaultMove m = book.lookup(engine);
+		if (m != null) {
+			event.finish(name, new Search.Result(m, 0, 0, 0, 0), m);
+		}
+		return m;
+	}
+	public Move aiStep(Engine engine, Search search) {
+		return aiStep(engine, search, Search.kDefaultDepth);
+	}
+	public Move aiStep(Engine engine, Search search, int depth) {
+		final Telemetry.AiStep event = new Telemetry.AiStep();
+		return decide(engine, search.search(engine, depth), event);
+	}
+	public Move aiStep(Engine engine, MonteCarlo mcts) {
+		final Telemetry.AiStep event = new Telemetry.AiStep();
+		return decide(engine, mcts.search(engine), event);
+	}
+	/* Makes the computer player that is thinking, if any, move at once with the best move found so far. */
+	public static void cancelAiStep() {
+		if (kStrategy.equals("mcts")) {
+			MonteCarlo.shared().cancel();
+		} else {
+			Search.shared().cancel();
 		}
 	}
-	public Move aiStep(Game game) {
-		/* TODO *
-		 * Decide how to act:
-		 * 1 – We iterate over all bricks and all free positions and check which bricks may be placed where.
-		 * 2 – For each pair, we assume that we place the brick there and iterate again over all
-		 *     now available positions and all remaining bricks, and so on recursively.
-		 * 3 – After all recursive iterations we choose the pair with the highest number of points.
-		 *     If several pairs are tied for best rating, we choose the one with fewest bricks.
-		 *     If there´s still a tie, choose one at random.
-		 * 4 – If no moves are possible at all, swap bricks.
+	private Move decide(Engine engine, Search.Result result, Telemetry.AiStep event) {
+		/* Decide how to act:
+		 * 1 – Take the move the search found, the one that gains us the most points compared to the
+		 *     other players over the next few turns (see Search and MonteCarlo).
+		 * 2 – If no moves are possible at all, swap bricks.
 		 *     Preferably keep bricks where all copies but this one are already on the board.
-		 * TODO penalty for giving other players the chance to score many points
-		 *      (e.g. placing the 5th brick in a row where someone else might be able to place the 6th brick)
 		 */
-		/* ArrayList<DefaultMove> allowedMoves = new ArrayList<>();
-		
-		final int[][] combs = allCombinations(bricks.length);
-		for (int[] c : combs) {
-			Map<Point, Brick> _board = game.getBoard();
-			ArrayList<Point> _placed = new ArrayList<>();
-			Map<Point, Integer> _moves = new HashMap<>();
-			for (int i : c) {
-				Map<Point, Brick> board = new HashMap<>(_board);
-				ArrayList<Point> placed = new ArrayList<>(_placed);
-				Map<Point, Integer> moves = new HashMap<>(_moves);
-				for (Point p : pointsNear()) {
-					if (!Game.mayPlaceAt(bricks[i], board, placed, p)) {
-						break;
-					}
-					board.put(p, bricks[i]);
-					placed.add(p);
-					moves.put(p, i);
-				}
-			}
-			allowedMoves.add(new DefaultMove(moves));
-		} */
-		
+		if (result.move != null) {
+			event.finish(name, result, result.move);
+			return result.move;
+		}
 		
-		return new SwapMove((int)(Math.random() * bricks.length));
-	}
-	private static Point[] pointsNear(Point[] pp) {
-		Set<Point> r = new HashSet<>();
-		for (Point p : pp) {
-			boolean n = false;
-			boolean s = false;
-			boolean w = false;
-			boolean e = false;
-			for (Point ppp : pp) {
-				if (ppp.x == p.x && ppp.y == p.y + 1) s = true;
-				if (ppp.x == p.x + 1 && ppp.y == p.y) e = true;
-				if (ppp.x == p.x && ppp.y == p.y - 1) n = true;
-				if (ppp.x == p.x - 1 && ppp.y == p.y) w = true;
-				if (n && s && w && e) break;
+		final Board board = engine.getBoard();
+		int[] swap = new int[bricks.length];
+		int n = 0;
+		for (int i = 0; i < bricks.length && n < engine.bagSize(); ++i) {
+			if (bricks[i] != null && board.count(bricks[i].code()) < 2) {
+				swap[n++] = i;
 			}
-			if (!n) r.add(new Point(p.x, p.y - 1));
-			if (!w) r.add(new Point(p.x - 1, p.y));
-			if (!s) r.add(new Point(p.x, p.y + 1));
-			if (!e) r.add(new Point(p.x + 1, p.y));
 		}
-		return r.toArray(new Point[0]);
-	}
-	private static int[][] allCombinations(int n) {
-		assert(n > 0);
-		if (n == 1) {
-			return new int[][] { new int[] { 1 }};
-		}
-		int[][] all = allCombinations(n - 1);
-		final int x = all.length;
-		int[][] result = new int[x * n][n];
-		for (int r = 0; r < x; ++r) {
-			for (int j = 0; j < n; ++j) {
-				for (int k = 0; k < j; ++k) result[r * n + j][k] = all[r][k];
-				result[r * n + j][j] = n;
-				for (int k = j + 1; k < n; ++k) result[r * n + j][k] = all[r][k - 1];
+		if (n == 0) {
+			for (int i = 0; i < bricks.length && n < engine.bagSize(); ++i) {
+				if (bricks[i] != null) {
+					swap[n++] = i;
+				}
 			}
 		}
-		return result;
+		final SwapMove m = new SwapMove(Arrays.copyOf(swap, n));
+		event.finish(name, result, m);
+		return m;
 	}
 }
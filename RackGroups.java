@@ -0,0 +1,77 @@
+/* Which bricks of a rack can be placed together in one turn.
+ *
+ * All bricks placed in a turn end up in one line, so they must have the same colour and
+ * distinct shapes, or the same shape and distinct colours. Bricks that are pairwise compatible
+ * in this way always share the colour or the shape, so a group is any set of pairwise compatible
+ * bricks. The groups of a rack are given as a bitmask over the 64 subsets of its slots: bit s is
+ * set if the bricks in the slots whose bits are set in s form a group. Of identical bricks, only
+ * the one in the first slot is used, so that each group of bricks appears only once. */
+public class RackGroups {
+
+	/* For each brick code, the codes of the bricks that may be placed in one line with it. */
+	private static final long[] kCompatible = new long[Brick.kTypes];
+	static {
+		for (int a = 0; a < Brick.kTypes; ++a) {
+			for (int b = 0; b < Brick.kTypes; ++b) {
+				final boolean sameColor = a / Brick.kShapes == b / Brick.kShapes;
+				final boolean sameShape = a % Brick.kShapes == b % Brick.kShapes;
+				if (sameColor != sameShape) kCompatible[a] |= 1L << b;
+			}
+		}
+	}
+
+	private RackGroups() {
+	}
+
+	/* Whether the bricks with the given codes may be placed in one line. */
+	public static boolean compatible(int a, int b) {
+		return (kCompatible[a] >>> b & 1) != 0;
+	}
+
+	/* The groups of a rack with at most 6 slots. Empty slots are in no group but the empty one. */
+	public static long of(Brick[] rack) {
+		assert(rack.length <= 6);
+		final int[] with = new int[rack.length];
+		int usable = 0;
+		for (int i = 0; i < rack.length; ++i) {
+			if (rack[i] == null) continue;
+			boolean first = true;
+			for (int j = 0; j < rack.length; ++j) {
+				if (rack[j] == null) continue;
+				if (compatible(rack[i].code(), rack[j].code())) with[i] |= 1 << j;
+				if (j < i && rack[j] == rack[i]) first = false;
+			}
+			if (first) usable |= 1 << i;
+		}
+		/* A set is a group if it is one without its highest slot and that slot fits all the others. */
+		long groups = 1;
+		for (int s = 1; s < 1 << rack.length; ++s) {
+			final int i = 31 - Integer.numberOfLeadingZeros(s);
+			final int rest = s & ~(1 << i);
+			if ((usable >> i & 1) != 0 && (groups >>> rest & 1) != 0 && (rest & ~with[i]) == 0) {
+				groups |= 1L << s;
+			}
+		}
+		return groups;
+	}
+
+	/* Whether the slot is not in the given group and can join it. */
+	public static boolean canAdd(long groups, int slots, int slot) {
+		return (slots >> slot & 1) == 0 && (groups >>> (slots | 1 << slot) & 1) != 0;
+	}
+
+	/* The groups that are not part of a larger group. */
+	public static long maximal(long groups) {
+		long result = groups;
+		for (int s = 0; s < 64; ++s) {
+			if ((groups >>> s & 1) == 0) continue;
+			for (int i = 0; i < 6; ++i) {
+				if ((s >> i & 1) == 0 && (groups >>> (s | 1 << i) & 1) != 0) {
+					result &= ~(1L << s);
+					break;
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,294 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/* Reads and writes saved games.
+ *
+ * The binary format starts with the magic bytes "RCsv" and a version byte, followed by the game
+ * and a CRC32 of everything before it. Numbers are stored as varints, signed ones zigzag-encoded;
+ * a brick is one byte holding its code plus one, with 0 for no brick. Files written by earlier
+ * versions of Rows&Cols in the old text format can still be read.
+ *
+ * Since version 2, the game's id and number of actions are stored as well, so that a journal of
+ * later actions can be replayed on top of the game (see Autosave). */
+public class Savegame {
+
+	private static final int kMagic = 0x52437376;
+	private static final int kVersion = 2;
+
+	/* Writes the game and the brick the current player is holding, if any. */
+	public static void write(Engine e, Brick held, Path file) throws IOException {
+		write(encode(e, held), file);
+	}
+	/* Writes an encoded game to a temporary file, syncs it to disk and renames it to the given file,
+	 * so that the file always holds either the old or the new game even if we crash midway. The
+	 * directory is synced as well, so that the rename itself is on disk. */
+	public static void write(ByteBuffer buf, Path file) throws IOException {
+		final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buf.hasRemaining()) ch.write(buf);
+			ch.force(true);
+		}
+		try {
+			Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException x) {
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+		syncDirectory(file.toAbsolutePath().getParent());
+	}
+	/* Not every platform can open a directory to sync it; there the rename is left to the file system. */
+	private static void syncDirectory(Path dir) {
+		if (dir == null) {
+			return;
+		}
+		try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+			ch.force(true);
+		} catch (IOException x) {
+		}
+	}
+
+	/* Restores a game written by write(), or by earlier versions in the text format.
+	 * Returns the brick the current player was holding, if any. */
+	public static Brick read(Engine e, Path file) throws IOException {
+		final ByteBuffer buf;
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			buf = ByteBuffer.allocate((int)ch.size());
+			while (buf.hasRemaining() && ch.read(buf) >= 0);
+		}
+		buf.flip();
+		if (buf.remaining() >= 4 && buf.getInt(0) == kMagic) {
+			return decode(e, buf);
+		}
+		/* Split lines like Files.readAllLines(), as the text format was written with the platform's line separator. */
+		final String text = new String(buf.array(), 0, buf.limit(), StandardCharsets.UTF_8);
+		return readText(e, new BufferedReader(new StringReader(text)).lines().collect(Collectors.toList()));
+	}
+
+	public static ByteBuffer encode(Engine e, Brick held) {
+		Writer w = new Writer();
+		w.buf.putInt(kMagic);
+		w.buf.put((byte)kVersion);
+		w.buf.putLong(e.gameId());
+		w.putVarint(e.actionCount());
+		final Player[] players = e.getPlayers();
+		w.putVarint(players.length);
+		w.putVarint(e.getCurrentPlayer());
+		w.putVarint(e.passCount());
+		for (Player p : players) {
+			final byte[] name = p.name.getBytes(StandardCharsets.UTF_8);
+			w.putVarint(name.length);
+			w.ensure(name.length + 2 + 10 + Player.kBricksPerPlayer);
+			w.buf.put(name);
+			w.buf.put((byte)(p.ai ? 1 : 0));
+			w.putVarint(p.getPoints());
+			for (Brick b : p.getBricks()) w.putBrick(b);
+		}
+		w.putBrick(held);
+		final Board board = e.getBoard();
+		w.putVarint(board.size());
+		for (int i = 0; i < board.size(); ++i) {
+			final int c = board.cellAt(i);
+			w.putSigned(Board.cellX(c));
+			w.putSigned(Board.cellY(c));
+			w.putBrick(board.brickAt(Board.cellX(c), Board.cellY(c)));
+		}
+		w.putVarint(e.bagSize());
+		for (int i = 0; i < e.bagSize(); ++i) w.putBrick(e.bagAt(i));
+		w.putVarint(e.placedCount());
+		for (int i = 0; i < e.placedCount(); ++i) {
+			w.putSigned(Board.cellX(e.placedAt(i)));
+			w.putSigned(Board.cellY(e.placedAt(i)));
+		}
+		/* The number of bricks being swapped plus one, or 0 if the player is not swapping. */
+		w.putVarint(e.isSwapping() ? e.swapCount() + 1 : 0);
+		for (int i = 0; i < e.swapCount(); ++i) w.putBrick(e.swappedAt(i));
+
+		final CRC32 crc = new CRC32();
+		crc.update(w.buf.array(), 0, w.buf.position());
+		w.ensure(4);
+		w.buf.putInt((int)crc.getValue());
+		w.buf.flip();
+		return w.buf;
+	}
+
+	public static Brick decode(Engine e, ByteBuffer buf) throws IOException {
+		if (buf.remaining() < 9 || buf.getInt() != kMagic) {
+			throw new IOException("Not a savegame");
+		}
+		final int version = buf.get();
+		if (version < 1 || version > kVersion) {
+			throw new IOException("Unsupported savegame version " + version);
+		}
+		final CRC32 crc = new CRC32();
+		final ByteBuffer body = buf.duplicate();
+		body.position(0).limit(buf.limit() - 4);
+		crc.update(body);
+		if ((int)crc.getValue() != buf.getInt(buf.limit() - 4)) {
+			throw new IOException("Savegame is corrupt");
+		}
+		buf.limit(buf.limit() - 4);
+		try {
+			final long gameId = version >= 2 ? buf.getLong() : 0;
+			final long actions = version >= 2 ? getVarint(buf) : 0;
+			final Player[] players = new Player[(int)getVarint(buf)];
+			final int currentPlayer = (int)getVarint(buf);
+			final int passes = (int)getVarint(buf);
+			for (int p = 0; p < players.length; ++p) {
+				final byte[] name = new byte[(int)getVarint(buf)];
+				buf.get(name);
+				players[p] = new Player(new String(name, StandardCharsets.UTF_8), buf.get() != 0);
+				players[p].addPoints(getVarint(buf));
+				for (int b = 0; b < Player.kBricksPerPlayer; ++b) players[p].getBricks()[b] = getBrick(buf);
+			}
+			final Brick held = getBrick(buf);
+			final int[] cells = new int[(int)getVarint(buf)];
+			final int[] codes = new int[cells.length];
+			for (int i = 0; i < cells.length; ++i) {
+				final int x = getSigned(buf);
+				cells[i] = Board.cell(x, getSigned(buf));
+				codes[i] = getBrick(buf).code();
+			}
+			final Brick[] bag = new Brick[(int)getVarint(buf)];
+			for (int i = 0; i < bag.length; ++i) bag[i] = getBrick(buf);
+			final int[] placed = new int[(int)getVarint(buf)];
+			for (int i = 0; i < placed.length; ++i) {
+				final int x = getSigned(buf);
+				placed[i] = Board.cell(x, getSigned(buf));
+			}
+			final int swap = (int)getVarint(buf);
+			Brick[] swapping = null;
+			if (swap > 0) {
+				swapping = new Brick[swap - 1];
+				for (int i = 0; i < swapping.length; ++i) swapping[i] = getBrick(buf);
+			}
+			e.restore(gameId, actions, players, currentPlayer, passes, cells, codes, bag, placed, swapping);
+			return held;
+		} catch (RuntimeException x) {
+			throw new IOException("Savegame is corrupt", x);
+		}
+	}
+
+	/* The text format of earlier versions. Bricks are written as shape and colour. */
+	private static Brick readText(Engine e, List<String> save) {
+		Brick currentBrick;
+		int i = 0;
+		String[] data = save.get(i++).split(" ");
+		final Player[] players = new Player[Integer.valueOf(data[0])];
+		final int currentPlayer = Integer.valueOf(data[1]);
+		for (int p = 0; p < players.length; ++p) {
+			final String n = save.get(i++);
+			data = save.get(i++).split(" ");
+			int j = 0;
+			final boolean a = data[j++].equals("1");
+			players[p] = new Player(n, a);
+			players[p].addPoints(Long.valueOf(data[j++]));
+			for (int b = 0; b < Player.kBricksPerPlayer; ++b) {
+				if (data[j++].equals("1")) {
+					final int s = Integer.valueOf(data[j++]);
+					final int c = Integer.valueOf(data[j++]);
+					players[p].getBricks()[b] = Brick.of(c, s);
+				}
+			}
+		}
+		data = save.get(i++).split(" ");
+		int j = 0;
+		final int boardS = Integer.valueOf(data[j++]);
+		final int remBrS = Integer.valueOf(data[j++]);
+		final int brPlacedS = Integer.valueOf(data[j++]);
+		final int swapS = Integer.valueOf(data[j++]);
+		if (data[j++].equals("0")) {
+			currentBrick = null;
+		} else {
+			final int s = Integer.valueOf(data[j++]);
+			final int c = Integer.valueOf(data[j++]);
+			currentBrick = Brick.of(c, s);
+		}
+		final int[] cells = new int[boardS];
+		final int[] codes = new int[boardS];
+		for (int b = 0; b < boardS; ++b) {
+			final int x = Integer.valueOf(data[j++]);
+			final int y = Integer.valueOf(data[j++]);
+			final int s = Integer.valueOf(data[j++]);
+			final int c = Integer.valueOf(data[j++]);
+			cells[b] = Board.cell(x, y);
+			codes[b] = Brick.of(c, s).code();
+		}
+		final Brick[] bag = new Brick[remBrS];
+		for (int b = 0; b < remBrS; ++b) {
+			final int s = Integer.valueOf(data[j++]);
+			final int c = Integer.valueOf(data[j++]);
+			bag[b] = Brick.of(c, s);
+		}
+		final int[] placed = new int[brPlacedS];
+		for (int b = 0; b < brPlacedS; ++b) {
+			final int x = Integer.valueOf(data[j++]);
+			final int y = Integer.valueOf(data[j++]);
+			placed[b] = Board.cell(x, y);
+		}
+		Brick[] swapping = null;
+		if (swapS >= 0) {
+			swapping = new Brick[swapS];
+			for (int b = 0; b < swapS; ++b) {
+				final int s = Integer.valueOf(data[j++]);
+				final int c = Integer.valueOf(data[j++]);
+				swapping[b] = Brick.of(c, s);
+			}
+		}
+		e.restore(0, 0, players, currentPlayer, 0, cells, codes, bag, placed, swapping);
+		return currentBrick;
+	}
+
+	/* A growable heap buffer with varint encoding. */
+	static class Writer {
+		ByteBuffer buf = ByteBuffer.allocate(1024);
+
+		void ensure(int n) {
+			if (buf.remaining() < n) {
+				ByteBuffer b = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + n));
+				buf.flip();
+				b.put(buf);
+				buf = b;
+			}
+		}
+		void putVarint(long v) {
+			ensure(10);
+			while ((v & ~0x7fL) != 0) {
+				buf.put((byte)(v | 0x80));
+				v >>>= 7;
+			}
+			buf.put((byte)v);
+		}
+		void putSigned(int v) {
+			putVarint((v << 1) ^ (v >> 31));
+		}
+		void putBrick(Brick b) {
+			ensure(1);
+			buf.put((byte)(b == null ? 0 : b.code() + 1));
+		}
+	}
+
+	static long getVarint(ByteBuffer buf) {
+		long v = 0;
+		for (int shift = 0;; shift += 7) {
+			final byte b = buf.get();
+			v |= (long)(b & 0x7f) << shift;
+			if (b >= 0) return v;
+		}
+	}
+	static int getSigned(ByteBuffer buf) {
+		final int v = (int)getVarint(buf);
+		return (v >>> 1) ^ -(v & 1);
+	}
+	static Brick getBrick(ByteBuffer buf) {
+		final int b = buf.get();
+		return b == 0 ? null : Brick.of(b - 1);
+	}
+}
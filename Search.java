@@ -0,0 +1,391 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Looks several turns ahead to find the best move for the current player.
+ *
+ * The value of a line of play is the number of points the searching player gains minus the
+ * points all other players gain; the other players are assumed to play against us. Racks we
+ * cannot see are dealt at random from the unseen bricks, and nothing is drawn from the bag
+ * while looking ahead. Only the `width` best-scoring moves are followed below the root.
+ *
+ * The root moves, and the moves one turn below them when there are enough turns left to be
+ * worth it, are searched in parallel on a ForkJoinPool. Every task works on its own copy of
+ * the engine. Results are combined in move order, so the outcome does not depend on timing.
+ *
+ * Positions reached by different orders of moves are looked up in a transposition table that
+ * all threads share. It remembers values, bounds and the best reply, which is tried first when
+ * the position comes up again.
+ *
+ * The search deepens iteratively: it looks one turn ahead, then two, and so on, trying the root
+ * moves in the order of the previous iteration's values. When the time for the move is up or
+ * cancel() is called, the iteration in progress is abandoned and the best move of the deepest
+ * finished one is returned. The first iteration, which only compares the points of the moves,
+ * always finishes.
+ *
+ * Once the bag is empty in a game of two players, Endgame tries to solve the rest of the game
+ * exactly in half of the time. If it does not succeed, the search goes on as usual with the
+ * time that is left. */
+public class Search {
+
+	public static final int kDefaultDepth = Integer.getInteger("rowsandcols.depth", 4);
+	/* Milliseconds a search may take, or 0 for no limit. */
+	public static final int kDefaultMoveTime = Integer.getInteger("rowsandcols.movetime", 1000);
+	public static final int kDefaultWidth = Integer.getInteger("rowsandcols.width", 8);
+	public static final int kDefaultThreads = Integer.getInteger("rowsandcols.threads",
+			Runtime.getRuntime().availableProcessors());
+	/* Larger than any difference in points, and far enough from the int range that windows can be shifted by a move's points. */
+	private static final int kInfinity = 1 << 20;
+	/* The transposition table has 2^kTableBits entries of 16 bytes each. */
+	public static final int kTableBits = Integer.getInteger("rowsandcols.tablebits", 20);
+
+	public static class Result {
+		public final Player.DefaultMove move;
+		public final int value;
+		public final long nodes;
+		/* The calls to Engine.mayPlaceAt() the search made. */
+		public final long checks;
+		/* The number of turns looked ahead by the deepest iteration that finished. */
+		public final int depth;
+		public Result(Player.DefaultMove m, int v, long n, long c, int d) {
+			move = m;
+			value = v;
+			nodes = n;
+			checks = c;
+			depth = d;
+		}
+	}
+
+	private static Search shared;
+	/* The search used by the computer players, configured by the system properties
+	 * rowsandcols.depth, rowsandcols.width, rowsandcols.threads and rowsandcols.movetime. */
+	public static synchronized Search shared() {
+		if (shared == null) shared = new Search(kDefaultThreads, kDefaultWidth);
+		return shared;
+	}
+
+	/* Tells the tasks of one search when to stop. */
+	private static class Budget {
+		/* System.nanoTime() when the time is up, or 0 for no limit. */
+		private final long deadline;
+		private volatile boolean expired;
+		/* Whether a task stopped early, which makes the current iteration useless. */
+		private volatile boolean cut;
+
+		Budget(long millis) {
+			deadline = millis > 0 ? Math.max(1, System.nanoTime() + millis * 1000000) : 0;
+		}
+		boolean expired() {
+			if (!expired && deadline != 0 && System.nanoTime() - deadline >= 0) expired = true;
+			return expired;
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private final int width;
+	private final long moveTime;
+	private final TranspositionTable table;
+	private final Endgame endgame;
+	private volatile Budget budget;
+	/* The nodes of all results returned so far. */
+	private long nodes;
+
+	public Search(int threads, int w) {
+		this(threads, w, kDefaultMoveTime);
+	}
+	/* A search that gives up deepening after the given number of milliseconds, or never if 0. */
+	public Search(int threads, int w, long millis) {
+		pool = new ForkJoinPool(threads);
+		width = w;
+		moveTime = millis;
+		table = new TranspositionTable(kTableBits);
+		endgame = new Endgame(table);
+	}
+
+	/* Makes the running search, if any, return the best move it found so far. Can be called from any thread. */
+	public void cancel() {
+		final Budget b = budget;
+		if (b != null) b.expired = true;
+		endgame.cancel();
+	}
+
+	/* Forgets everything learned in earlier searches, so that the next search does not depend on them. */
+	public void clear() {
+		table.clear();
+	}
+
+	/* Returns the best move for the current player when looking up to the given number of turns
+	 * ahead, but at least one, or a result without a move if the player cannot place any bricks.
+	 * The legality checks made are added to the engine's count. */
+	public Result search(Engine engine, int maxDepth) {
+		final Result r = run(engine, maxDepth);
+		nodes += r.nodes;
+		return r;
+	}
+	/* The number of nodes of all searches made with this search so far. */
+	public long nodesSearched() {
+		return nodes;
+	}
+	private Result run(Engine engine, int maxDepth) {
+		final Engine root = new Engine(engine);
+		root.determinize();
+		ArrayList<Player.DefaultMove> moves = new MoveGenerator(root).generate(
+				root.getPlayers()[root.getCurrentPlayer()].getBricks());
+		long checks = root.legalityChecks();
+		if (moves.isEmpty()) {
+			engine.countLegalityChecks(checks);
+			return new Result(null, 0, 1, checks, 0);
+		}
+		final int me = root.getCurrentPlayer();
+		final Budget b = new Budget(moveTime);
+		budget = b;
+		if (Endgame.applies(engine)) {
+			final Result r = endgame.solve(engine, moveTime > 0 ? Math.max(1, moveTime / 2) : 0);
+			if (r != null) {
+				budget = null;
+				engine.countLegalityChecks(checks);
+				return r;
+			}
+		}
+		table.newSearch();
+		long nodes = 1;
+		MoveTask best = null;
+		int depth = 0;
+		while (depth < Math.max(1, maxDepth) && !(depth > 0 && b.expired())) {
+			final ArrayList<MoveTask> tasks = new ArrayList<>();
+			for (Player.DefaultMove m : moves) tasks.add(new MoveTask(root, m, depth + 1, me, depth > 0 ? b : null));
+			pool.invoke(new RecursiveAction() {
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+			for (MoveTask t : tasks) {
+				nodes += t.nodes;
+				checks += t.checks;
+			}
+			if (b.cut) {
+				break;
+			}
+			++depth;
+			best = tasks.get(0);
+			for (MoveTask t : tasks) {
+				if (t.value > best.value) best = t;
+			}
+			/* The next iteration tries the most promising moves first, which makes it cheaper. */
+			Collections.sort(tasks, new Comparator<MoveTask>() {
+				public int compare(MoveTask x, MoveTask y) {
+					return Integer.compare(y.value, x.value);
+				}
+			});
+			moves = new ArrayList<>();
+			for (MoveTask t : tasks) moves.add(t.move);
+		}
+		budget = null;
+		engine.countLegalityChecks(checks);
+		return new Result(best.move, best.value, nodes, checks, depth);
+	}
+
+	/* Evaluates one move from the position of the given engine, which it does not modify. */
+	private class MoveTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Engine source;
+		private final Player.DefaultMove move;
+		private final int depth;
+		private final int me;
+		/* When to stop, or null to search to the end. */
+		private final Budget budget;
+		private int value;
+		private long nodes;
+		private long checks;
+
+		MoveTask(Engine e, Player.DefaultMove m, int d, int p, Budget b) {
+			source = e;
+			move = m;
+			depth = d;
+			me = p;
+			budget = b;
+		}
+
+		/* Whether to stop now. Once a task stopped, the results of all tasks of the iteration are useless. */
+		private boolean stop() {
+			if (budget == null) return false;
+			if (budget.cut) return true;
+			if (budget.expired()) {
+				budget.cut = true;
+				return true;
+			}
+			return false;
+		}
+
+		protected void compute() {
+			final Engine e = new Engine(source);
+			try {
+				compute(e);
+			} finally {
+				checks += e.legalityChecks();
+			}
+		}
+		private void compute(Engine e) {
+			if (stop()) {
+				return;
+			}
+			final MoveGenerator gen = new MoveGenerator(e);
+			final boolean maximizing = e.getCurrentPlayer() == me;
+			final int gain = gain(e, move);
+			final boolean gameOver = make(e, move);
+			value = maximizing ? gain : -gain;
+			++nodes;
+			if (gameOver || depth <= 1) {
+				return;
+			}
+			if (depth <= 2) {
+				value += evaluate(e, gen, depth - 1, -kInfinity, kInfinity);
+				return;
+			}
+			/* Enough turns left to split the subtree across the pool as well. All replies are searched
+			 * with a full window, so the result is exact. */
+			final long key = key(e);
+			final long entry = table.probe(key);
+			if (entry != 0 && TranspositionTable.depth(entry) >= depth - 1 &&
+					TranspositionTable.bound(entry) == TranspositionTable.kExact) {
+				value += TranspositionTable.value(entry);
+				return;
+			}
+			final ArrayList<Player.DefaultMove> replies = gen.generate(e.getPlayers()[e.getCurrentPlayer()].getBricks());
+			if (replies.isEmpty()) {
+				value += evaluate(e, gen, depth - 1, -kInfinity, kInfinity);
+				return;
+			}
+			if (entry != 0) toFront(replies, TranspositionTable.move(entry));
+			ArrayList<MoveTask> tasks = new ArrayList<>();
+			for (int i = 0; i < replies.size() && i < width; ++i) {
+				tasks.add(new MoveTask(e, replies.get(i), depth - 1, me, budget));
+			}
+			invokeAll(tasks);
+			final boolean replyMaximizing = e.getCurrentPlayer() == me;
+			MoveTask best = tasks.get(0);
+			for (MoveTask t : tasks) {
+				nodes += t.nodes;
+				checks += t.checks;
+				if (replyMaximizing ? t.value > best.value : t.value < best.value) best = t;
+			}
+			/* Values found after stopping are incomplete and must not be stored. */
+			if (stop()) return;
+			table.store(key, best.value, depth - 1, TranspositionTable.kExact, (int)best.move.key);
+			value += best.value;
+		}
+
+		/* Value of the position for the searching player, looking the given number of turns ahead. */
+		private int evaluate(Engine e, MoveGenerator gen, int d, int alpha, int beta) {
+			if (stop()) {
+				return 0;
+			}
+			++nodes;
+			final long key = key(e);
+			final long entry = table.probe(key);
+			if (entry != 0 && TranspositionTable.depth(entry) >= d) {
+				final int v = TranspositionTable.value(entry);
+				switch (TranspositionTable.bound(entry)) {
+					case TranspositionTable.kExact: return v;
+					case TranspositionTable.kLower: alpha = Math.max(alpha, v); break;
+					case TranspositionTable.kUpper: beta = Math.min(beta, v); break;
+				}
+				if (alpha >= beta) return v;
+			}
+			final int alpha0 = alpha;
+			final int beta0 = beta;
+
+			final Brick[] rack = e.getPlayers()[e.getCurrentPlayer()].getBricks();
+			final ArrayList<Player.DefaultMove> moves = gen.generate(rack);
+			final boolean maximizing = e.getCurrentPlayer() == me;
+			if (moves.isEmpty()) {
+				if (d <= 1) return 0;
+				e.pushTurn();
+				final int v = evaluate(e, gen, d - 1, alpha, beta);
+				e.popTurn();
+				if (stop()) return 0;
+				store(key, v, d, alpha0, beta0, 0);
+				return v;
+			}
+			if (entry != 0) toFront(moves, TranspositionTable.move(entry));
+			int best = maximizing ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+			int bestMove = 0;
+			for (int i = 0; i < moves.size() && i < width; ++i) {
+				final Player.DefaultMove m = moves.get(i);
+				final int gain = gain(e, m);
+				final int g = maximizing ? gain : -gain;
+				int v = g;
+				if (d > 1) {
+					final boolean gameOver = make(e, m);
+					/* The reply's value is added to the points of this move, so its window is shifted by them. */
+					if (!gameOver) v += evaluate(e, gen, d - 1, alpha - g, beta - g);
+					unmake(e, m);
+					/* Values found after stopping are incomplete and must not be stored. */
+					if (stop()) return 0;
+				}
+				if (maximizing ? v > best : v < best) {
+					best = v;
+					bestMove = (int)m.key;
+				}
+				if (maximizing) {
+					alpha = Math.max(alpha, v);
+				} else {
+					beta = Math.min(beta, v);
+				}
+				if (alpha >= beta) break;
+			}
+			store(key, best, d, alpha0, beta0, bestMove);
+			return best;
+		}
+
+		/* Values are seen from the searching player's side, so they are only valid for that player. */
+		private long key(Engine e) {
+			return e.hash() ^ Board.mix(0x5ea0 + me);
+		}
+	}
+
+	/* Moves the move with the given key, as stored in the transposition table, to the front. */
+	private static void toFront(ArrayList<Player.DefaultMove> moves, int key) {
+		for (int i = 0; i < moves.size(); ++i) {
+			if ((moves.get(i).key & 0xffff) == key) {
+				moves.add(0, moves.remove(i));
+				return;
+			}
+		}
+	}
+
+	private void store(long key, int value, int depth, int alpha, int beta, int move) {
+		final int bound = value <= alpha ? TranspositionTable.kUpper :
+				value >= beta ? TranspositionTable.kLower : TranspositionTable.kExact;
+		table.store(key, value, depth, bound, move);
+	}
+
+	/* Points for a move, including the bonus for placing the last brick once the bag is empty. */
+	static int gain(Engine e, Player.DefaultMove m) {
+		return m.points + (finishes(e, m) ? 6 : 0);
+	}
+	private static boolean finishes(Engine e, Player.DefaultMove m) {
+		if (e.bagSize() > 0) return false;
+		int n = 0;
+		for (Brick b : e.getPlayers()[e.getCurrentPlayer()].getBricks()) {
+			if (b != null) ++n;
+		}
+		return n == m.cells.length;
+	}
+
+	/* Plays the move and hands the turn to the next player. Returns whether this ends the game. */
+	static boolean make(Engine e, Player.DefaultMove m) {
+		final boolean gameOver = finishes(e, m);
+		for (int i = 0; i < m.cells.length; ++i) {
+			e.place(Board.cellX(m.cells[i]), Board.cellY(m.cells[i]), m.bricks[i]);
+		}
+		e.pushTurn();
+		return gameOver;
+	}
+	static void unmake(Engine e, Player.DefaultMove m) {
+		e.popTurn();
+		final Brick[] rack = e.getPlayers()[e.getCurrentPlayer()].getBricks();
+		for (int i = m.cells.length - 1; i >= 0; --i) {
+			rack[m.bricks[i]] = e.unplace();
+		}
+	}
+}
@@ -0,0 +1,241 @@
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Plays complete games between computer players without a window and reports statistics.
+ *
+ *   java Simulation [--games N] [--players 2-6] [--seed S] [--threads T] [--format csv|json]
+ *                   [--ai search|mcts[,...]] [--depth D] [--playouts P] [--movetime MS] [--book FILE]
+ *
+ * Games are spread over a ForkJoinPool, one game per task. Each worker thread searches with a
+ * single thread of its own, and every game is dealt from a seed derived from S and its number,
+ * so a game's outcome does not depend on the number of threads. One line is written per game as
+ * soon as it ends, and a summary follows on the error stream.
+ *
+ * The computer players use the searches given by --ai for the seats in turn, so that e.g.
+ * "search,mcts" pits Search against MonteCarlo. By default they look two turns ahead or make
+ * 2000 playouts without a time limit, so that games are reproducible; with --movetime they
+ * search until the time is up. With --book, they look up the first turns in the given opening
+ * book (see OpeningBook) before searching. */
+public class Simulation {
+
+	private static class Options {
+		int games = 100;
+		int nrPlayers = 2;
+		long seed = System.nanoTime();
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean json = false;
+		String[] strategies = { "search" };
+		int depth = 2;
+		long playouts = 2000;
+		long moveTime = 0;
+		OpeningBook book = null;
+
+		String strategy(int seat) {
+			return strategies[seat % strategies.length];
+		}
+	}
+
+	private static class Result {
+		int index;
+		long seed;
+		int turns;
+		int swaps;
+		/* Swaps while the bag holds fewer bricks than a full rack. */
+		int endGameSwaps;
+		int passes;
+		/* Whether the game ended by a player placing the last brick rather than by everybody passing. */
+		boolean finished;
+		long[] points;
+		/* Nodes searched or playouts made by the computer players. */
+		long nodes;
+		long nanos;
+	}
+
+	private static final int kMaxTurns = 10000;
+
+	public static void main(String[] args) throws Exception {
+		final Options o = new Options();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+				case "--games": o.games = Integer.parseInt(args[i + 1]); break;
+				case "--players": o.nrPlayers = Integer.parseInt(args[i + 1]); break;
+				case "--seed": o.seed = Long.parseLong(args[i + 1]); break;
+				case "--threads": o.threads = Integer.parseInt(args[i + 1]); break;
+				case "--format": o.json = args[i + 1].equals("json"); break;
+				case "--ai": o.strategies = args[i + 1].split(","); break;
+				case "--depth": o.depth = Integer.parseInt(args[i + 1]); break;
+				case "--playouts": o.playouts = Long.parseLong(args[i + 1]); break;
+				case "--movetime": o.moveTime = Long.parseLong(args[i + 1]); break;
+				case "--book": o.book = OpeningBook.open(Paths.get(args[i + 1])); break;
+				default: usage();
+			}
+		}
+		boolean valid = args.length % 2 == 0 && o.games > 0 && o.nrPlayers >= 2 && o.nrPlayers <= 6 && o.threads > 0 &&
+				o.depth > 0 && o.playouts >= 0 && o.moveTime >= 0 && (o.playouts > 0 || o.moveTime > 0);
+		for (String s : o.strategies) valid &= s.equals("search") || s.equals("mcts");
+		if (!valid) {
+			usage();
+		}
+		run(o, System.out, System.err);
+	}
+	private static void usage() {
+		System.err.println("Usage: java Simulation [--games N] [--players 2-6] [--seed S] [--threads T] [--format csv|json] " +
+				"[--ai search|mcts[,...]] [--depth D] [--playouts P] [--movetime MS] [--book FILE]");
+		System.exit(1);
+	}
+
+	private static void run(final Options o, final PrintStream out, PrintStream summary)
+			throws InterruptedException, ExecutionException {
+		if (!o.json) {
+			out.print("game,seed,turns,swaps,endgame_swaps,passes,finished,millis");
+			for (int p = 0; p < o.nrPlayers; ++p) out.print(",points" + p);
+			out.println();
+		}
+		final ThreadLocal<Search> searches = new ThreadLocal<Search>() {
+			protected Search initialValue() {
+				return new Search(1, Search.kDefaultWidth, o.moveTime);
+			}
+		};
+		final ThreadLocal<MonteCarlo> mcts = new ThreadLocal<MonteCarlo>() {
+			protected MonteCarlo initialValue() {
+				return new MonteCarlo(1, o.moveTime, o.playouts);
+			}
+		};
+		final ForkJoinPool pool = new ForkJoinPool(o.threads);
+		final long start = System.nanoTime();
+		ArrayList<Future<Result>> futures = new ArrayList<>();
+		for (int g = 0; g < o.games; ++g) {
+			final int index = g;
+			futures.add(pool.submit(new Callable<Result>() {
+				public Result call() {
+					final Result r = play(index, Board.mix(Board.mix(o.seed) + index), o, searches.get(), mcts.get());
+					synchronized (out) {
+						out.println(o.json ? toJson(r) : toCsv(r));
+						out.flush();
+					}
+					return r;
+				}
+			}));
+		}
+		ArrayList<Result> results = new ArrayList<>();
+		for (Future<Result> f : futures) results.add(f.get());
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		pool.shutdown();
+		summarize(results, o, seconds, summary);
+	}
+
+	/* Plays one game between computer players. */
+	private static Result play(int index, long seed, Options o, Search search, MonteCarlo mcts) {
+		final long start = System.nanoTime();
+		final int nrPlayers = o.nrPlayers;
+		Result r = new Result();
+		r.index = index;
+		r.seed = seed;
+		String[] names = new String[nrPlayers];
+		boolean[] ai = new boolean[nrPlayers];
+		for (int p = 0; p < nrPlayers; ++p) {
+			names[p] = "AI " + (p + 1);
+			ai[p] = true;
+		}
+		search.clear();
+		mcts.clear();
+		final long nodes = search.nodesSearched() + mcts.nodesSearched();
+		Engine e = new Engine();
+		e.newGame(names, ai, new SplittableRandom(seed));
+		boolean over = false;
+		while (!over && r.turns < kMaxTurns) {
+			final Player player = e.getPlayers()[e.getCurrentPlayer()];
+			Player.Move m = player.bookStep(e, o.book);
+			if (m == null) {
+				m = o.strategy(e.getCurrentPlayer()).equals("mcts") ? player.aiStep(e, mcts) : player.aiStep(e, search, o.depth);
+			}
+			if (m instanceof Player.DefaultMove) {
+				final Player.DefaultMove d = (Player.DefaultMove)m;
+				for (int i = 0; i < d.cells.length; ++i) {
+					e.place(Board.cellX(d.cells[i]), Board.cellY(d.cells[i]), d.bricks[i]);
+				}
+			} else if (((Player.SwapMove)m).bricks.length > 0) {
+				++r.swaps;
+				if (e.bagSize() < Player.kBricksPerPlayer) ++r.endGameSwaps;
+				e.beginSwap();
+				for (int i : ((Player.SwapMove)m).bricks) e.swap(i);
+			} else {
+				++r.passes;
+			}
+			++r.turns;
+			over = e.endTurn();
+		}
+		r.finished = e.bagSize() == 0 && e.passCount() < nrPlayers;
+		r.points = new long[nrPlayers];
+		for (int p = 0; p < nrPlayers; ++p) r.points[p] = e.getPlayers()[p].getPoints();
+		r.nodes = search.nodesSearched() + mcts.nodesSearched() - nodes;
+		r.nanos = System.nanoTime() - start;
+		return r;
+	}
+
+	private static String toCsv(Result r) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(r.index).append(',').append(r.seed).append(',').append(r.turns).append(',').append(r.swaps)
+				.append(',').append(r.endGameSwaps).append(',').append(r.passes).append(',').append(r.finished)
+				.append(',').append(r.nanos / 1000000);
+		for (long p : r.points) sb.append(',').append(p);
+		return sb.toString();
+	}
+	private static String toJson(Result r) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"game\":").append(r.index).append(",\"seed\":").append(r.seed).append(",\"turns\":").append(r.turns)
+				.append(",\"swaps\":").append(r.swaps).append(",\"endgame_swaps\":").append(r.endGameSwaps)
+				.append(",\"passes\":").append(r.passes).append(",\"finished\":").append(r.finished)
+				.append(",\"millis\":").append(r.nanos / 1000000).append(",\"points\":[");
+		for (int p = 0; p < r.points.length; ++p) sb.append(p > 0 ? "," : "").append(r.points[p]);
+		return sb.append("]}").toString();
+	}
+
+	private static void summarize(List<Result> results, Options o, double seconds, PrintStream out) {
+		final int nrPlayers = o.nrPlayers;
+		long turns = 0;
+		long swaps = 0;
+		long endGameSwaps = 0;
+		long passes = 0;
+		int finished = 0;
+		long nodes = 0;
+		for (Result r : results) {
+			nodes += r.nodes;
+			turns += r.turns;
+			swaps += r.swaps;
+			endGameSwaps += r.endGameSwaps;
+			passes += r.passes;
+			if (r.finished) ++finished;
+		}
+		final int n = results.size();
+		out.printf("%d games with %d players in %.1f s: %.2f games/s, %.1f turns/s%n", n, nrPlayers, seconds,
+				n / seconds, turns / seconds);
+		out.printf("Turns per game %.1f, swaps per game %.2f (%.2f in the end game), passes per game %.2f, " +
+				"games ended by the last brick %.1f%%%n", (double)turns / n, (double)swaps / n,
+				(double)endGameSwaps / n, (double)passes / n, 100.0 * finished / n);
+		out.printf("AI nodes or playouts: %.0f per second%n", nodes / seconds);
+		for (int p = 0; p < nrPlayers; ++p) {
+			long[] points = new long[n];
+			double sum = 0;
+			double wins = 0;
+			for (int i = 0; i < n; ++i) {
+				final long[] all = results.get(i).points;
+				points[i] = all[p];
+				sum += all[p];
+				long best = 0;
+				int winners = 0;
+				for (long q : all) best = Math.max(best, q);
+				for (long q : all) if (q == best) ++winners;
+				if (all[p] == best) wins += 1.0 / winners;
+			}
+			Arrays.sort(points);
+			final double mean = sum / n;
+			double var = 0;
+			for (long q : points) var += (q - mean) * (q - mean);
+			out.printf("Seat %d (%s): mean %.1f, sd %.1f, min %d, median %d, max %d, wins %.1f%%%n", p + 1, o.strategy(p), mean,
+					Math.sqrt(var / n), points[0], points[n / 2], points[n - 1], 100.0 * wins / n);
+		}
+	}
+}
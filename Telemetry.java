@@ -0,0 +1,365 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import jdk.jfr.*;
+
+/* Measures where the time goes while playing.
+ *
+ * Every measurement is a JFR event of the category Rows&Cols, so it can be recorded with the
+ * standard JDK tools, e.g. java -XX:StartFlightRecording=filename=rc.jfr Game, and looked at
+ * with jfr print or JDK Mission Control. Running totals are also published in the MBean
+ * rowsandcols:type=Telemetry, which jconsole and other JMX clients can show.
+ *
+ * Measurements are taken per turn, AI step, frame, file access and highscore, never inside the
+ * search. Events that are not being recorded cost a flag check; the totals a few additions. Set
+ * the property rowsandcols.telemetry to false to switch the totals and the MBean off as well. */
+public class Telemetry {
+
+	public static final boolean kEnabled = Boolean.parseBoolean(System.getProperty("rowsandcols.telemetry", "true"));
+
+	/* The totals shown in JMX. Times are in microseconds. */
+	public interface MBean {
+		long getTurns();
+		long getLegalityChecks();
+		long getLastTurnLegalityChecks();
+		long getAiSteps();
+		long getAiMicros();
+		long getAiNodes();
+		long getLastAiMicros();
+		long getFrames();
+		long getFrameMicros();
+		long getLastFrameMicros();
+		/* Frames drawn per second, as of the latest frame. */
+		long getFrameRate();
+		long getSaves();
+		long getSavedBytes();
+		long getSaveMicros();
+		long getLoads();
+		long getLoadedBytes();
+		long getLoadMicros();
+		long getHighscoreWrites();
+		long getHighscoreMicros();
+	}
+
+	private static class Totals implements MBean {
+		final LongAdder turns = new LongAdder();
+		final LongAdder legalityChecks = new LongAdder();
+		volatile long lastTurnLegalityChecks;
+		final LongAdder aiSteps = new LongAdder();
+		final LongAdder aiNanos = new LongAdder();
+		final LongAdder aiNodes = new LongAdder();
+		volatile long lastAiNanos;
+		final LongAdder frames = new LongAdder();
+		final LongAdder frameNanos = new LongAdder();
+		volatile long lastFrameNanos;
+		volatile long frameRate;
+		/* Frames are only drawn on the event dispatch thread. */
+		private long frameSecond;
+		private long framesThisSecond;
+		final LongAdder saves = new LongAdder();
+		final LongAdder savedBytes = new LongAdder();
+		final LongAdder saveNanos = new LongAdder();
+		final LongAdder loads = new LongAdder();
+		final LongAdder loadedBytes = new LongAdder();
+		final LongAdder loadNanos = new LongAdder();
+		final LongAdder highscoreWrites = new LongAdder();
+		final LongAdder highscoreNanos = new LongAdder();
+
+		void frame(long end, long nanos) {
+			frames.increment();
+			frameNanos.add(nanos);
+			lastFrameNanos = nanos;
+			final long second = end / 1000000000L;
+			if (second != frameSecond) {
+				frameRate = second == frameSecond + 1 ? framesThisSecond : 0;
+				frameSecond = second;
+				framesThisSecond = 0;
+			}
+			++framesThisSecond;
+		}
+
+		public long getTurns() {
+			return turns.sum();
+		}
+		public long getLegalityChecks() {
+			return legalityChecks.sum();
+		}
+		public long getLastTurnLegalityChecks() {
+			return lastTurnLegalityChecks;
+		}
+		public long getAiSteps() {
+			return aiSteps.sum();
+		}
+		public long getAiMicros() {
+			return aiNanos.sum() / 1000;
+		}
+		public long getAiNodes() {
+			return aiNodes.sum();
+		}
+		public long getLastAiMicros() {
+			return lastAiNanos / 1000;
+		}
+		public long getFrames() {
+			return frames.sum();
+		}
+		public long getFrameMicros() {
+			return frameNanos.sum() / 1000;
+		}
+		public long getLastFrameMicros() {
+			return lastFrameNanos / 1000;
+		}
+		public long getFrameRate() {
+			return frameRate;
+		}
+		public long getSaves() {
+			return saves.sum();
+		}
+		public long getSavedBytes() {
+			return savedBytes.sum();
+		}
+		public long getSaveMicros() {
+			return saveNanos.sum() / 1000;
+		}
+		public long getLoads() {
+			return loads.sum();
+		}
+		public long getLoadedBytes() {
+			return loadedBytes.sum();
+		}
+		public long getLoadMicros() {
+			return loadNanos.sum() / 1000;
+		}
+		public long getHighscoreWrites() {
+			return highscoreWrites.sum();
+		}
+		public long getHighscoreMicros() {
+			return highscoreNanos.sum() / 1000;
+		}
+	}
+
+	private static final Totals totals = new Totals();
+	static {
+		if (kEnabled) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(totals, MBean.class),
+						new ObjectName("rowsandcols:type=Telemetry"));
+			} catch (Exception x) {
+				System.out.println("ERROR: Could not register telemetry: " + x);
+			}
+		}
+	}
+
+	public static MBean totals() {
+		return totals;
+	}
+
+	/* Each event starts when it is created and ends with its finish() method. */
+
+	@Name("rowsandcols.Turn")
+	@Label("Turn")
+	@Category("Rows&Cols")
+	@Description("A player's turn, from its start until the next player's turn begins")
+	public static class Turn extends Event {
+		@Label("Player")
+		String player;
+		@Label("Points")
+		int points;
+		@Label("Bricks Placed")
+		int placed;
+		@Label("Bricks Swapped")
+		int swapped;
+		@Label("Legality Checks")
+		@Description("Calls to Engine.mayPlaceAt(), including those of the computer player's search")
+		long legalityChecks;
+		private final transient long checksBefore;
+
+		/* Starts measuring the turn that the engine is at. */
+		public Turn(Engine e) {
+			checksBefore = e.legalityChecks();
+			begin();
+		}
+		/* Must be called just before the turn ends. */
+		public void finish(Engine e) {
+			final long checks = e.legalityChecks() - checksBefore;
+			if (kEnabled) {
+				totals.turns.increment();
+				totals.legalityChecks.add(checks);
+				totals.lastTurnLegalityChecks = checks;
+			}
+			if (shouldCommit()) {
+				player = e.getPlayers()[e.getCurrentPlayer()].name;
+				points = e.scoreTurn();
+				placed = e.placedCount();
+				swapped = e.swapCount();
+				legalityChecks = checks;
+				commit();
+			}
+		}
+	}
+
+	@Name("rowsandcols.AiStep")
+	@Label("AI Step")
+	@Category("Rows&Cols")
+	@Description("A computer player deciding on a move")
+	public static class AiStep extends Event {
+		@Label("Player")
+		String player;
+		@Label("Nodes")
+		long nodes;
+		@Label("Depth")
+		@Description("The number of turns looked ahead by the deepest search that finished in time")
+		int depth;
+		@Label("Legality Checks")
+		long legalityChecks;
+		@Label("Bricks Placed")
+		int placed;
+		@Label("Bricks Swapped")
+		int swapped;
+		private final transient long start;
+
+		public AiStep() {
+			start = System.nanoTime();
+			begin();
+		}
+		public void finish(String name, Search.Result r, Player.Move m) {
+			if (kEnabled) {
+				final long nanos = System.nanoTime() - start;
+				totals.aiSteps.increment();
+				totals.aiNanos.add(nanos);
+				totals.aiNodes.add(r.nodes);
+				totals.lastAiNanos = nanos;
+			}
+			if (shouldCommit()) {
+				player = name;
+				nodes = r.nodes;
+				depth = r.depth;
+				legalityChecks = r.checks;
+				if (m instanceof Player.DefaultMove) {
+					placed = ((Player.DefaultMove)m).cells.length;
+				} else {
+					swapped = ((Player.SwapMove)m).bricks.length;
+				}
+				commit();
+			}
+		}
+	}
+
+	@Name("rowsandcols.Frame")
+	@Label("Frame")
+	@Category("Rows&Cols")
+	@Description("Drawing the window's contents")
+	public static class Frame extends Event {
+		@Label("Width")
+		int width;
+		@Label("Height")
+		int height;
+		@Label("Board Redrawn")
+		@Description("Whether the bricks on the board had to be drawn again, rather than only the overlays")
+		boolean boardRedrawn;
+		private final transient long start;
+
+		public Frame() {
+			start = System.nanoTime();
+			begin();
+		}
+		public void finish(int w, int h, boolean board) {
+			if (kEnabled) {
+				final long end = System.nanoTime();
+				totals.frame(end, end - start);
+			}
+			if (shouldCommit()) {
+				width = w;
+				height = h;
+				boardRedrawn = board;
+				commit();
+			}
+		}
+	}
+
+	@Name("rowsandcols.Save")
+	@Label("Save")
+	@Category("Rows&Cols")
+	@Description("Writing a snapshot of the game to disk")
+	public static class Save extends Event {
+		@Label("Size")
+		@DataAmount
+		long bytes;
+		private final transient long start;
+
+		public Save() {
+			start = System.nanoTime();
+			begin();
+		}
+		public void finish(long size) {
+			if (kEnabled) {
+				totals.saves.increment();
+				totals.savedBytes.add(size);
+				totals.saveNanos.add(System.nanoTime() - start);
+			}
+			if (shouldCommit()) {
+				bytes = size;
+				commit();
+			}
+		}
+	}
+
+	@Name("rowsandcols.Load")
+	@Label("Load")
+	@Category("Rows&Cols")
+	@Description("Reading a saved game and replaying its journal")
+	public static class Load extends Event {
+		@Label("Size")
+		@DataAmount
+		long bytes;
+		@Label("Actions Replayed")
+		long replayed;
+		private final transient long start;
+
+		public Load() {
+			start = System.nanoTime();
+			begin();
+		}
+		public void finish(long size, long actions) {
+			if (kEnabled) {
+				totals.loads.increment();
+				totals.loadedBytes.add(size);
+				totals.loadNanos.add(System.nanoTime() - start);
+			}
+			if (shouldCommit()) {
+				bytes = size;
+				replayed = actions;
+				commit();
+			}
+		}
+	}
+
+	@Name("rowsandcols.Highscore")
+	@Label("Highscore")
+	@Category("Rows&Cols")
+	@Description("Storing the result of a game in the highscores")
+	public static class Highscore extends Event {
+		@Label("Rank")
+		@Description("The rank among the best results overall, or -1")
+		int rank;
+		@Label("Index Rewritten")
+		boolean indexRewritten;
+		private final transient long start;
+
+		public Highscore() {
+			start = System.nanoTime();
+			begin();
+		}
+		public void finish(int r, boolean index) {
+			if (kEnabled) {
+				totals.highscoreWrites.increment();
+				totals.highscoreNanos.add(System.nanoTime() - start);
+			}
+			if (shouldCommit()) {
+				rank = r;
+				indexRewritten = index;
+				commit();
+			}
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/* A fixed-size hash table of search results that many threads can use without locking.
+ *
+ * Each slot holds two longs: the packed entry and the entry XORed with the position's key.
+ * A reader only accepts an entry if both agree with the key it is looking for, which detects
+ * slots that another thread overwrote half-way. An entry is replaced when it stems from an
+ * earlier search or was searched less deeply than the new one. */
+public class TranspositionTable {
+	
+	public static final int kExact = 1;
+	/* The value is at least the stored one. */
+	public static final int kLower = 2;
+	/* The value is at most the stored one. */
+	public static final int kUpper = 3;
+	
+	private static final int kValueOffset = 1 << 23;
+	
+	private final long[] slots;
+	private final int mask;
+	private int generation;
+	
+	/* Creates a table with 2^bits entries of 16 bytes each. */
+	public TranspositionTable(int bits) {
+		slots = new long[2 << bits];
+		mask = (1 << bits) - 1;
+	}
+	
+	/* Ages all entries, so that they are preferably replaced by the next search. */
+	public void newSearch() {
+		generation = (generation + 1) & 0xff;
+	}
+	
+	public void clear() {
+		java.util.Arrays.fill(slots, 0);
+	}
+	
+	/* Returns the packed entry for the given key, or 0 if there is none. */
+	public long probe(long key) {
+		final int i = 2 * ((int)(key ^ (key >>> 32)) & mask);
+		final long data = slots[i + 1];
+		return data != 0 && (slots[i] ^ data) == key ? data : 0;
+	}
+	
+	public void store(long key, int value, int depth, int bound, int move) {
+		final int i = 2 * ((int)(key ^ (key >>> 32)) & mask);
+		final long old = slots[i + 1];
+		if (old != 0 && generation(old) == generation && depth(old) > depth && (slots[i] ^ old) != key) {
+			return;
+		}
+		final long data = (long)(value + kValueOffset) & 0xffffff |
+				(long)Math.min(depth, 63) << 24 |
+				(long)bound << 30 |
+				(long)(move & 0xffff) << 32 |
+				(long)generation << 48;
+		slots[i] = key ^ data;
+		slots[i + 1] = data;
+	}
+	
+	public static int value(long data) {
+		return (int)(data & 0xffffff) - kValueOffset;
+	}
+	public static int depth(long data) {
+		return (int)(data >>> 24) & 63;
+	}
+	public static int bound(long data) {
+		return (int)(data >>> 30) & 3;
+	}
+	/* The low 16 bits of the key of the best move found. */
+	public static int move(long data) {
+		return (int)(data >>> 32) & 0xffff;
+	}
+	private static int generation(long data) {
+		return (int)(data >>> 48) & 0xff;
+	}
+}
@@ -0,0 +1,40 @@
+package rowsandcols;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* How long the computer player takes for one move when looking the given number of turns ahead without a time
+ * limit, searching on a single thread with an empty transposition table. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AiBenchmark {
+
+	@Param({"OPENING", "MIDGAME", "LATE", "FULL"})
+	public String stage;
+
+	@Param({"2", "4"})
+	public int depth;
+
+	private Engine engine;
+	private Search search;
+
+	@Setup
+	public void setup() {
+		engine = Fixtures.position(stage);
+		search = new Search(1, Search.kDefaultWidth, 0);
+	}
+
+	@Setup(Level.Invocation)
+	public void clearTable() {
+		search.clear();
+	}
+
+	@Benchmark
+	public Player.Move aiStep() {
+		return engine.getPlayers()[engine.getCurrentPlayer()].aiStep(engine, search, depth);
+	}
+}
@@ -0,0 +1,55 @@
+package rowsandcols;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* Drawing the game into an image without a window. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class DrawBenchmark {
+
+	@Param({"OPENING", "MIDGAME", "LATE", "FULL"})
+	public String stage;
+
+	@Param({"1280x800"})
+	public String size;
+
+	private Engine engine;
+	private Game game;
+	private BufferedImage image;
+	private int x, y;
+	private Brick brick;
+
+	@Setup
+	public void setup() {
+		engine = Fixtures.position(stage);
+		final String[] wh = size.split("x");
+		image = new BufferedImage(Integer.parseInt(wh[0]), Integer.parseInt(wh[1]), BufferedImage.TYPE_INT_RGB);
+		game = new Game(engine, image.getWidth(), image.getHeight());
+		final Player.DefaultMove m = Fixtures.bestMove(engine);
+		x = Board.cellX(m.cells[0]);
+		y = Board.cellY(m.cells[0]);
+		brick = engine.getPlayers()[engine.getCurrentPlayer()].getBricks()[m.bricks[0]];
+	}
+
+	/* A frame in which only the overlays changed, such as when the mouse moves. */
+	@Benchmark
+	public BufferedImage frame() {
+		game.drawTo(image);
+		return image;
+	}
+
+	/* A frame after a brick was placed, which redraws the board. */
+	@Benchmark
+	public BufferedImage frameAfterPlacing() {
+		engine.place(x, y, brick);
+		game.drawTo(image);
+		engine.unplace();
+		return image;
+	}
+}
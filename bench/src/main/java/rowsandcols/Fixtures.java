@@ -0,0 +1,69 @@
+package rowsandcols;
+
+import java.util.*;
+
+/* Reproducible positions for the benchmarks. A game is dealt from a fixed seed and played by
+ * greedy players, who make the move with the most points or else swap their whole rack, until
+ * the board holds a given number of bricks. */
+final class Fixtures {
+
+	static final long kSeed = 20200128;
+	static final int kPlayers = 2;
+
+	enum Stage {
+		OPENING(4), MIDGAME(40), LATE(80), FULL(100);
+
+		final int bricks;
+		Stage(int b) {
+			bricks = b;
+		}
+	}
+
+	/* Returns a game at the start of a turn with at least as many bricks on the board as the stage asks for.
+	 * If the game ends too early, the next seeds are tried. */
+	static Engine position(Stage stage, int nrPlayers, long seed) {
+		for (;; ++seed) {
+			Engine e = play(stage.bricks, nrPlayers, seed);
+			if (e != null) return e;
+		}
+	}
+	static Engine position(String stage) {
+		return position(Stage.valueOf(stage), kPlayers, kSeed);
+	}
+
+	private static Engine play(int bricks, int nrPlayers, long seed) {
+		String[] names = new String[nrPlayers];
+		boolean[] ai = new boolean[nrPlayers];
+		for (int p = 0; p < nrPlayers; ++p) {
+			names[p] = "AI " + (p + 1);
+			ai[p] = true;
+		}
+		Engine e = new Engine();
+		e.newGame(names, ai, new SplittableRandom(seed));
+		while (e.getBoard().size() < bricks) {
+			final Player.DefaultMove m = bestMove(e);
+			if (m != null) {
+				for (int i = 0; i < m.cells.length; ++i) {
+					e.place(Board.cellX(m.cells[i]), Board.cellY(m.cells[i]), m.bricks[i]);
+				}
+			} else if (e.bagSize() > 0) {
+				e.beginSwap();
+				final Brick[] rack = e.getPlayers()[e.getCurrentPlayer()].getBricks();
+				for (int i = 0; i < rack.length && e.swapCount() < e.bagSize(); ++i) {
+					if (rack[i] != null) e.swap(i);
+				}
+			}
+			if (e.endTurn()) {
+				return null;
+			}
+		}
+		return e;
+	}
+
+	/* The move with the most points for the current player, or null if there is none. */
+	static Player.DefaultMove bestMove(Engine e) {
+		final ArrayList<Player.DefaultMove> moves =
+				new MoveGenerator(e).generate(e.getPlayers()[e.getCurrentPlayer()].getBricks());
+		return moves.isEmpty() ? null : moves.get(0);
+	}
+}
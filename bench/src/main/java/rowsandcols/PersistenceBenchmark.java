@@ -0,0 +1,53 @@
+package rowsandcols;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* Saving and loading games, in memory and through the autosave files the game uses. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+
+	@Param({"OPENING", "MIDGAME", "LATE", "FULL"})
+	public String stage;
+
+	private Engine engine;
+	private Engine loaded;
+	private Path dir;
+	private Autosave autosave;
+
+	@Setup
+	public void setup() throws IOException {
+		engine = Fixtures.position(stage);
+		loaded = new Engine();
+		dir = Files.createTempDirectory("rowsandcols-bench");
+		autosave = new Autosave(dir.resolve(".save"));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		autosave.delete();
+		autosave.flush();
+		Files.deleteIfExists(dir);
+	}
+
+	@Benchmark
+	public Brick encodeDecode() throws IOException {
+		final ByteBuffer buf = Savegame.encode(engine, null);
+		return Savegame.decode(loaded, buf);
+	}
+
+	/* What happens when the menu is opened and the saved game is continued, including syncing to disk. */
+	@Benchmark
+	public Brick saveAndLoad() throws IOException {
+		autosave.save(engine, null);
+		return autosave.load(loaded);
+	}
+}
@@ -0,0 +1,35 @@
+package rowsandcols;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* Finding which bricks of a rack can be placed together. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RackGroupsBenchmark {
+
+	@Param({"OPENING", "MIDGAME", "LATE"})
+	public String stage;
+
+	private Brick[] rack;
+
+	@Setup
+	public void setup() {
+		final Engine e = Fixtures.position(stage);
+		rack = e.getPlayers()[e.getCurrentPlayer()].getBricks();
+	}
+
+	@Benchmark
+	public long groups() {
+		return RackGroups.of(rack);
+	}
+
+	@Benchmark
+	public long maximalGroups() {
+		return RackGroups.maximal(RackGroups.of(rack));
+	}
+}
@@ -0,0 +1,53 @@
+package rowsandcols;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* The placement rules on boards of increasing size. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RulesBenchmark {
+
+	@Param({"OPENING", "MIDGAME", "LATE", "FULL"})
+	public String stage;
+
+	private Engine engine;
+	private int[] frontier;
+
+	@Setup
+	public void setup() {
+		engine = Fixtures.position(stage);
+		final Board board = engine.getBoard();
+		frontier = new int[board.frontierSize()];
+		for (int i = 0; i < frontier.length; ++i) frontier[i] = board.frontierAt(i);
+	}
+
+	/* Asks for every kind of brick at every empty cell next to the board. */
+	@Benchmark
+	public int mayPlaceAt() {
+		int n = 0;
+		for (int c : frontier) {
+			for (int code = 0; code < Brick.kTypes; ++code) {
+				if (engine.mayPlaceAt(Brick.of(code), Board.cellX(c), Board.cellY(c))) ++n;
+			}
+		}
+		return n;
+	}
+
+	/* The cells highlighted for each kind of brick in turn, so that the cache is refilled every time. */
+	@Benchmark
+	public int legalCells() {
+		int n = 0;
+		for (int code = 0; code < Brick.kTypes; ++code) n += engine.legalCellCount(Brick.of(code));
+		return n;
+	}
+
+	@Benchmark
+	public int generateMoves() {
+		return new MoveGenerator(engine).generate(engine.getPlayers()[engine.getCurrentPlayer()].getBricks()).size();
+	}
+}
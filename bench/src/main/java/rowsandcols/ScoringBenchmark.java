@@ -0,0 +1,40 @@
+package rowsandcols;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* Scoring a turn: the points are added up while the bricks are placed and read when the turn ends. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScoringBenchmark {
+
+	@Param({"OPENING", "MIDGAME", "LATE", "FULL"})
+	public String stage;
+
+	private Engine engine;
+	private int[] cells;
+	private Brick[] bricks;
+
+	@Setup
+	public void setup() {
+		engine = Fixtures.position(stage);
+		final Player.DefaultMove m = Fixtures.bestMove(engine);
+		final Brick[] rack = engine.getPlayers()[engine.getCurrentPlayer()].getBricks();
+		cells = m.cells;
+		bricks = new Brick[m.bricks.length];
+		for (int i = 0; i < bricks.length; ++i) bricks[i] = rack[m.bricks[i]];
+	}
+
+	/* Places the best move of the current player, scores it and takes it back. */
+	@Benchmark
+	public int placeAndScore() {
+		for (int i = 0; i < cells.length; ++i) engine.place(Board.cellX(cells[i]), Board.cellY(cells[i]), bricks[i]);
+		final int points = engine.scoreTurn();
+		for (int i = 0; i < cells.length; ++i) engine.unplace();
+		return points;
+	}
+}